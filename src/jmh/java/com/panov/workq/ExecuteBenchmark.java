@@ -0,0 +1,76 @@
+package com.panov.workq;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
+
+/**
+ * End-to-end latency of a batch: adding it and running execute() until every result is in.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExecuteBenchmark {
+    public enum Workload {
+        CPU((t, wq) -> {
+            Blackhole.consumeCPU(100);
+            return t;
+        }),
+        BLOCKING((t, wq) -> {
+            LockSupport.parkNanos(100_000);
+            return t;
+        });
+
+        final BiFunction<Integer, WorkQueue<Integer, Integer>, Integer> handler;
+
+        Workload(BiFunction<Integer, WorkQueue<Integer, Integer>, Integer> handler) {
+            this.handler = handler;
+        }
+    }
+
+    @Param({"CPU", "BLOCKING"})
+    Workload workload;
+
+    @Param({"PLATFORM_THREADS", "VIRTUAL_THREADS", "WORK_STEALING"})
+    ExecutionMode executionMode;
+
+    @Param({"1", "4", "16"})
+    int maxWorkers;
+
+    @Param({"100", "10000"})
+    int batchSize;
+
+    private WorkQueue<Integer, Integer> queue;
+    private List<Integer> batch;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        queue = WorkQueue.builder(workload.handler)
+                .executionMode(executionMode)
+                .maxWorkers(maxWorkers)
+                .build();
+        batch = new ArrayList<>();
+        for (int i = 0; i < batchSize; ++i) {
+            batch.add(i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        queue.close();
+    }
+
+    @Benchmark
+    public List<Integer> execute() throws InterruptedException {
+        queue.addAll(batch);
+        return queue.execute();
+    }
+}
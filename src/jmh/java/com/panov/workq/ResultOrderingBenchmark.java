@@ -0,0 +1,72 @@
+package com.panov.workq;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Cost of handing results back in order: the materialized list against both streaming orders.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResultOrderingBenchmark {
+    @Param({"4"})
+    int maxWorkers;
+
+    @Param({"1000", "100000"})
+    int batchSize;
+
+    @Param({"1024"})
+    int bufferSize;
+
+    private WorkQueue<Integer, Integer> queue;
+    private List<Integer> batch;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        queue = WorkQueue.<Integer, Integer>builder((t, wq) -> t)
+                .minWorkers(maxWorkers)
+                .maxWorkers(maxWorkers)
+                .persistent(true)
+                .build();
+        batch = new ArrayList<>();
+        for (int i = 0; i < batchSize; ++i) {
+            batch.add(i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        queue.close();
+    }
+
+    @Benchmark
+    public List<Integer> list() throws InterruptedException {
+        queue.addAll(batch);
+        return queue.execute();
+    }
+
+    @Benchmark
+    public void completionOrder(Blackhole blackhole) {
+        queue.addAll(batch);
+        try (Stream<Integer> results = queue.executeStream(ResultOrder.COMPLETION, bufferSize)) {
+            results.forEach(blackhole::consume);
+        }
+    }
+
+    @Benchmark
+    public void submissionOrder(Blackhole blackhole) {
+        queue.addAll(batch);
+        try (Stream<Integer> results = queue.executeStream(ResultOrder.SUBMISSION, bufferSize)) {
+            results.forEach(blackhole::consume);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.panov.workq;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Contention of producers adding tasks to a queue whose workers drain it concurrently.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class SubmissionBenchmark {
+    @Param({"1", "4", "16"})
+    int maxWorkers;
+
+    @Param({"1", "100"})
+    int batchSize;
+
+    private WorkQueue<Integer, Integer> queue;
+    private List<Integer> batch;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        queue = WorkQueue.<Integer, Integer>builder((t, wq) -> t)
+                .minWorkers(maxWorkers)
+                .maxWorkers(maxWorkers)
+                .persistent(true)
+                .build();
+        batch = new ArrayList<>();
+        for (int i = 0; i < batchSize; ++i) {
+            batch.add(i);
+        }
+    }
+
+    // Ends the round, so results of one iteration do not pile up into the next
+    @TearDown(Level.Iteration)
+    public void drain() throws InterruptedException {
+        queue.execute();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        queue.close();
+    }
+
+    @Benchmark
+    public void add() {
+        if (batchSize == 1) {
+            queue.add(1);
+        } else {
+            queue.addAll(batch);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.panov.workq;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handlers spawning subtasks: every task of a complete binary tree adds its two children.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SubtaskBenchmark {
+    @Param({"PLATFORM_THREADS", "WORK_STEALING"})
+    ExecutionMode executionMode;
+
+    @Param({"4", "16"})
+    int maxWorkers;
+
+    @Param({"1023", "65535"})
+    int nodes;
+
+    private WorkQueue<Integer, Integer> queue;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int size = nodes;
+        queue = WorkQueue.<Integer, Integer>builder((node, wq) -> {
+                    int left = 2 * node + 1;
+                    if (left < size) {
+                        wq.addAll(List.of(left, left + 1));
+                    }
+                    return node;
+                })
+                .executionMode(executionMode)
+                .minWorkers(maxWorkers)
+                .maxWorkers(maxWorkers)
+                .persistent(true)
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        queue.close();
+    }
+
+    @Benchmark
+    public List<Integer> spawn() throws InterruptedException {
+        queue.add(0);
+        return queue.execute();
+    }
+}
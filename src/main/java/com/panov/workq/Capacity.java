@@ -0,0 +1,95 @@
+package com.panov.workq;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Counts the tasks that wait in a queue against its limit. Subclasses keep the count,
+ * this class lets producers wait for room: only those that have to touch the lock.
+ */
+abstract class Capacity {
+    private final AtomicInteger waiters;
+    private final ReentrantLock lock;
+    private final Condition notFull;
+    private volatile boolean closed;
+
+    Capacity() {
+        this.waiters = new AtomicInteger(0);
+        this.lock = new ReentrantLock();
+        this.notFull = lock.newCondition();
+    }
+
+    abstract boolean tryAcquire(int permits);
+
+    /**
+     * Takes room even past the limit, for tasks the queue has admitted once already.
+     */
+    abstract void forceAcquire(int permits);
+
+    /**
+     * Gives room back, implementations call {@link #released()} afterwards.
+     */
+    abstract void release(int permits);
+
+    abstract int size();
+
+    /**
+     * Waits for room until the timeout elapses, returns false on timeout.
+     * A negative timeout waits for as long as it takes.
+     */
+    boolean acquire(int permits, long timeout, TimeUnit unit) throws InterruptedException {
+        if (tryAcquire(permits)) {
+            return true;
+        }
+        long remaining = unit.toNanos(timeout);
+        lock.lock();
+        waiters.incrementAndGet();
+        try {
+            // Registered as a waiter before re-checking, so release() can not miss us
+            while (!tryAcquire(permits)) {
+                if (closed) {
+                    throw new IllegalStateException("WorkQueue is closed");
+                }
+                if (timeout < 0) {
+                    notFull.await();
+                } else if (remaining <= 0) {
+                    return false;
+                } else {
+                    remaining = notFull.awaitNanos(remaining);
+                }
+            }
+            return true;
+        } finally {
+            waiters.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wakes up waiting producers for good, they fail instead of getting room.
+     */
+    void close() {
+        closed = true;
+        signalWaiters();
+    }
+
+    /**
+     * Lets producers waiting for room know that some has been released.
+     */
+    void released() {
+        if (waiters.get() > 0) {
+            signalWaiters();
+        }
+    }
+
+    private void signalWaiters() {
+        lock.lock();
+        try {
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
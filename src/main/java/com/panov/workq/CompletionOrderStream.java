@@ -0,0 +1,91 @@
+package com.panov.workq;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams results as their tasks finish. At most {@code capacity} tasks may be running
+ * or waiting to be consumed at a time.
+ */
+class CompletionOrderStream<R> extends ResultStream<R> {
+    private final int capacity;
+    private final Queue<Object> buffered;
+    private final Queue<Object> backfilled;
+    private int reserved;
+
+    CompletionOrderStream(AtomicInteger pendingTasks, int executionTimeout, Owner owner, int capacity) {
+        super(pendingTasks, executionTimeout, owner);
+        this.capacity = capacity;
+        this.buffered = new ArrayDeque<>(capacity);
+        this.backfilled = new ArrayDeque<>();
+    }
+
+    @Override
+    public void awaitTurn(int id) throws InterruptedException {
+        lock.lock();
+        try {
+            while (reserved >= capacity) {
+                slotFreed.await();
+            }
+            ++reserved;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void accept(int id, R result) {
+        lock.lock();
+        try {
+            buffered.add(wrap(result));
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void reject(int id, TaskResult<R> failure) {
+        // Nothing to consume, the slot is freed by releaseTurn() if the task took one
+    }
+
+    @Override
+    public void releaseTurn(int id) {
+        lock.lock();
+        try {
+            --reserved;
+            slotFreed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    void backfill(int id, Object value) {
+        if (value instanceof Failure) {
+            return;
+        }
+        lock.lock();
+        try {
+            backfilled.add(value);
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    protected Object poll() {
+        Object value = backfilled.poll();
+        if (value != null) {
+            return value;
+        }
+        value = buffered.poll();
+        if (value != null) {
+            --reserved;
+            slotFreed.signal();
+        }
+        return value;
+    }
+}
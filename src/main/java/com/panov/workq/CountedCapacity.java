@@ -0,0 +1,45 @@
+package com.panov.workq;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Capacity kept in a single counter, reserving and releasing room is a CAS.
+ */
+class CountedCapacity extends Capacity {
+    private final int limit;
+    private final AtomicInteger used;
+
+    CountedCapacity(int limit) {
+        this.limit = limit;
+        this.used = new AtomicInteger(0);
+    }
+
+    @Override
+    boolean tryAcquire(int permits) {
+        while (true) {
+            int current = used.get();
+            if (permits > limit - current) {
+                return false;
+            }
+            if (used.compareAndSet(current, current + permits)) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    void forceAcquire(int permits) {
+        used.addAndGet(permits);
+    }
+
+    @Override
+    void release(int permits) {
+        used.addAndGet(-permits);
+        released();
+    }
+
+    @Override
+    int size() {
+        return used.get();
+    }
+}
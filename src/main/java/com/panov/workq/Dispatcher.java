@@ -0,0 +1,20 @@
+package com.panov.workq;
+
+/**
+ * Runs the tasks a {@link WorkQueue} puts into its task queue.
+ */
+interface Dispatcher {
+    void start();
+
+    /**
+     * Called after tasks have been enqueued, so the dispatcher can react to a growing backlog.
+     */
+    void signal();
+
+    void shutdownNow();
+
+    /**
+     * Number of threads currently serving the queue.
+     */
+    int size();
+}
@@ -0,0 +1,19 @@
+package com.panov.workq;
+
+public enum ExecutionMode {
+    /**
+     * An elastic pool of platform threads sized between {@code minWorkers} and {@code maxWorkers}.
+     */
+    PLATFORM_THREADS,
+    /**
+     * Every task runs on its own virtual thread, at most {@code maxWorkers} of them at a time.
+     * Suits handlers that spend most of their time blocked on I/O.
+     */
+    VIRTUAL_THREADS,
+    /**
+     * A work-stealing pool of {@code maxWorkers} threads. Tasks that handlers add go onto the
+     * local deque of the worker that added them instead of the shared queue, which suits
+     * recursive, divide-and-conquer workloads.
+     */
+    WORK_STEALING
+}
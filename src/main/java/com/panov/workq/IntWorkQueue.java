@@ -0,0 +1,69 @@
+package com.panov.workq;
+
+import java.util.Objects;
+
+/**
+ * {@link WorkQueue} counterpart for {@code int} tasks and results, which are kept in
+ * primitive arrays end to end, so millions of tasks do not turn into millions of boxes.
+ * <p>
+ * Workers only run during {@link #execute()}, tasks added by handlers join the running round.
+ */
+public class IntWorkQueue extends PrimitiveWorkQueue {
+    private final Handler handler;
+
+    public IntWorkQueue(Handler handler, int maxQueueSize, int maxWorkers, int executionTimeout) {
+        super(maxQueueSize, maxWorkers, executionTimeout);
+        this.handler = Objects.requireNonNull(handler);
+    }
+
+    public void add(int task) {
+        acquire(1);
+        synchronized (this) {
+            Round round = reserve(1);
+            int id = round.size();
+            ((int[]) round.taskSegment(id))[id & SEGMENT_MASK] = task;
+            publish(round, id + 1);
+        }
+    }
+
+    /**
+     * Adds the tasks as one batch, they get consecutive ids.
+     */
+    public void addAll(int... tasks) {
+        acquire(tasks.length);
+        synchronized (this) {
+            Round round = reserve(tasks.length);
+            int id = round.size();
+            for (int task : tasks) {
+                ((int[]) round.taskSegment(id))[id & SEGMENT_MASK] = task;
+                ++id;
+            }
+            publish(round, id);
+        }
+    }
+
+    /**
+     * Waits until every task of the current round, including the ones handlers add along
+     * the way, has finished and returns their results in submission order. Tasks whose
+     * handler threw have no result.
+     */
+    public int[] execute() throws InterruptedException {
+        return (int[]) executeRound();
+    }
+
+    @Override
+    Object newArray(int length) {
+        return new int[length];
+    }
+
+    @Override
+    void runTask(Round round, int id) {
+        int task = ((int[]) round.taskSegment(id))[id & SEGMENT_MASK];
+        ((int[]) round.resultSegment(id))[id & SEGMENT_MASK] = handler.apply(task, this);
+    }
+
+    @FunctionalInterface
+    public interface Handler {
+        int apply(int task, IntWorkQueue queue);
+    }
+}
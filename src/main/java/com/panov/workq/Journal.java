@@ -0,0 +1,376 @@
+package com.panov.workq;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of the round a queue is running, so that a queue built again on the same
+ * file after a crash can pick the round up, see {@link WorkQueue.Builder#journal(Path, TaskCodec, TaskCodec)}.
+ * <p>
+ * Records are appended to a buffer and written out by group commit: the first caller that
+ * needs its records on disk writes and syncs everything buffered so far, while callers
+ * arriving meanwhile wait and are covered by the next sync, so one sync serves many
+ * records. Records nobody waits for are written out by {@link #flush()} or {@link #writeOut()}.
+ * A record is its length, a CRC32 of the rest, a type, a task id and an optional
+ * value, a record torn by a crash fails its checksum and ends the log.
+ * <p>
+ * The file only ever holds one round and is emptied as the next one starts. A long round
+ * gets compacted once the file has grown past the threshold and doubled since it was last
+ * compacted: the submissions of tasks that have finished are dropped.
+ */
+class Journal implements Closeable {
+    static final byte SUBMITTED = 1;
+    static final byte COMPLETED = 2;
+    static final byte FAILED = 3;
+    static final byte TIMED_OUT = 4;
+    static final byte CANCELLED = 5;
+
+    // Type, id and whether a value follows
+    private static final int RECORD_HEADER = 1 + Integer.BYTES + 1;
+    // Length and checksum in front of every record
+    private static final int FRAME = Integer.BYTES + Integer.BYTES;
+    // Records nobody waits for are written out once this many bytes have piled up, see flushFull()
+    private static final int FLUSH_BYTES = 64 << 10;
+
+    interface Replay {
+        /**
+         * @param value the record's value, null if it has none
+         */
+        void record(byte type, int id, byte[] value) throws IOException;
+    }
+
+    private final Path file;
+    private final long compactionThreshold;
+    private final ReentrantLock lock;
+    private final Condition synced;
+    private final CRC32 checksum;
+
+    private FileChannel channel;
+    // Records not written out yet, and the buffer the next ones go to while they are
+    private ByteBuffer buffer;
+    private ByteBuffer spare;
+    // Round the records belong to, records of any other are dropped
+    private long epoch;
+    private long appended;
+    private long durable;
+    // Someone is writing out, the channel is theirs until they are done
+    private boolean syncing;
+    private long compactedSize;
+    private UncheckedIOException failure;
+
+    Journal(Path file, long compactionThreshold) {
+        this.file = file;
+        this.compactionThreshold = compactionThreshold;
+        this.lock = new ReentrantLock();
+        this.synced = lock.newCondition();
+        this.checksum = new CRC32();
+        this.buffer = ByteBuffer.allocate(8192);
+        this.spare = ByteBuffer.allocate(8192);
+        try {
+            this.channel = FileChannel.open(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can not open the journal " + file, e);
+        }
+    }
+
+    static <V> byte[] encode(V value, TaskCodec<V> codec) {
+        if (value == null) {
+            return null;
+        }
+        ByteBuffer target = ByteBuffer.allocate(codec.encodedSize(value));
+        codec.encode(value, target);
+        return target.array();
+    }
+
+    /**
+     * Reads back what the log holds and makes it the log of the given round. A torn
+     * record at the end, and anything after it, is cut off.
+     */
+    void replay(long epoch, Replay replay) {
+        lock.lock();
+        try {
+            long end = scan(channel, replay);
+            channel.truncate(end);
+            channel.position(end);
+            compactedSize = end;
+            this.epoch = epoch;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can not read the journal " + file, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Buffers a record of the given round.
+     *
+     * @return the ticket to {@link #awaitDurable(long) wait} for, 0 if the round is over
+     */
+    long append(long epoch, byte type, int id, byte[] value) {
+        int length = RECORD_HEADER + (value == null ? 0 : value.length);
+        lock.lock();
+        try {
+            if (epoch != this.epoch) {
+                return 0;
+            }
+            if (buffer.remaining() < FRAME + length) {
+                buffer = grow(buffer, FRAME + length);
+            }
+            int start = buffer.position();
+            buffer.putInt(length).putInt(0).put(type).putInt(id).put((byte) (value == null ? 0 : 1));
+            if (value != null) {
+                buffer.put(value);
+            }
+            checksum.reset();
+            checksum.update(buffer.array(), start + FRAME, length);
+            buffer.putInt(start + Integer.BYTES, (int) checksum.getValue());
+            return ++appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns once the record of the ticket, and every one before it, is on disk.
+     *
+     * @throws UncheckedIOException if the log can not be written
+     */
+    void awaitDurable(long ticket) {
+        lock.lock();
+        try {
+            while (durable < ticket) {
+                if (failure != null) {
+                    throw failure;
+                }
+                if (syncing) {
+                    synced.awaitUninterruptibly();
+                } else {
+                    sync();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes out what is buffered unless a write is under way already.
+     */
+    void flush() {
+        flush(1);
+    }
+
+    /**
+     * Writes out what is buffered once enough has piled up, so records nobody waits for
+     * do not pile up on the heap.
+     */
+    void flushFull() {
+        flush(FLUSH_BYTES);
+    }
+
+    /**
+     * Writes out everything buffered so far, waiting for a write under way to finish first,
+     * as that one may have missed the latest records.
+     */
+    void writeOut() {
+        lock.lock();
+        try {
+            while (syncing) {
+                synced.awaitUninterruptibly();
+            }
+            if (failure == null && buffer.position() > 0) {
+                sync();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flush(int minBytes) {
+        lock.lock();
+        try {
+            if (!syncing && failure == null && buffer.position() >= minBytes) {
+                sync();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Empties the log for the next round, the records of the last one are dropped.
+     */
+    void reset(long epoch) {
+        lock.lock();
+        try {
+            while (syncing) {
+                synced.awaitUninterruptibly();
+            }
+            this.epoch = epoch;
+            buffer.clear();
+            durable = appended;
+            if (failure == null) {
+                channel.truncate(0);
+                channel.force(false);
+                compactedSize = 0;
+            }
+        } catch (IOException e) {
+            failure = new UncheckedIOException("Can not write the journal " + file, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes out what is still buffered, the log is kept for the next queue to resume.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            while (syncing) {
+                synced.awaitUninterruptibly();
+            }
+            if (failure == null && buffer.position() > 0) {
+                sync();
+            }
+            channel.close();
+        } catch (IOException e) {
+            // Nothing is lost that a crash would not have lost
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called holding the lock, which is let go while writing so that others can keep appending
+    private void sync() {
+        syncing = true;
+        ByteBuffer batch = buffer.flip();
+        buffer = spare;
+        long upTo = appended;
+        UncheckedIOException error = null;
+        lock.unlock();
+        try {
+            while (batch.hasRemaining()) {
+                channel.write(batch);
+            }
+            channel.force(false);
+            if (channel.size() > Math.max(compactionThreshold, 2 * compactedSize)) {
+                compact();
+            }
+        } catch (IOException e) {
+            error = new UncheckedIOException("Can not write the journal " + file, e);
+        } finally {
+            lock.lock();
+            spare = batch.clear();
+            syncing = false;
+            if (error != null) {
+                failure = error;
+            } else {
+                durable = Math.max(durable, upTo);
+            }
+            synced.signalAll();
+        }
+    }
+
+    // Rewrites the log without the submissions of finished tasks and swaps it in whole
+    private void compact() throws IOException {
+        BitSet finished = new BitSet();
+        scan(channel, (type, id, value) -> {
+            if (type != SUBMITTED) {
+                finished.set(id);
+            }
+        });
+        Path target = file.resolveSibling(file.getFileName() + ".compact");
+        FileChannel compacted = FileChannel.open(target,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(compacted)));
+            CRC32 crc = new CRC32();
+            scan(channel, (type, id, value) -> {
+                if (type != SUBMITTED || !finished.get(id)) {
+                    write(out, crc, type, id, value);
+                }
+            });
+            out.flush();
+            compacted.force(false);
+            Files.move(target, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            compacted.close();
+            Files.deleteIfExists(target);
+            throw e;
+        }
+        channel.close();
+        channel = compacted;
+        compactedSize = channel.size();
+    }
+
+    private static void write(DataOutputStream out, CRC32 crc, byte type, int id, byte[] value) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + (value == null ? 0 : value.length));
+        record.put(type).putInt(id).put((byte) (value == null ? 0 : 1));
+        if (value != null) {
+            record.put(value);
+        }
+        crc.reset();
+        crc.update(record.array());
+        out.writeInt(record.capacity());
+        out.writeInt((int) crc.getValue());
+        out.write(record.array());
+    }
+
+    // Returns where the last intact record ends. The stream is left open, closing it would close the channel.
+    private static long scan(FileChannel channel, Replay replay) throws IOException {
+        long size = channel.size();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0))));
+        CRC32 crc = new CRC32();
+        long end = 0;
+        while (size - end >= FRAME) {
+            int length = in.readInt();
+            int expected = in.readInt();
+            if (length < RECORD_HEADER || length > size - end - FRAME) {
+                break;
+            }
+            byte[] record = new byte[length];
+            in.readFully(record);
+            crc.reset();
+            crc.update(record);
+            if ((int) crc.getValue() != expected) {
+                break;
+            }
+            ByteBuffer fields = ByteBuffer.wrap(record);
+            byte type = fields.get();
+            int id = fields.getInt();
+            byte[] value = null;
+            if (fields.get() != 0) {
+                value = new byte[fields.remaining()];
+                fields.get(value);
+            }
+            replay.record(type, id, value);
+            end += FRAME + length;
+        }
+        return end;
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int needed) {
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+        return grown.put(buffer.flip());
+    }
+}
@@ -0,0 +1,292 @@
+package com.panov.workq;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
+
+/**
+ * Task queue split into lanes that share the workers by deficit round robin.
+ * <p>
+ * Every visit a lane earns {@code weight * QUANTUM} credit and may dequeue work as
+ * long as the credit covers its cost, a chunk costing as many tasks as it holds. A lane
+ * with a big backlog thus gets its weighted share and no more, while the other lanes
+ * never wait for more than one round of the rest.
+ * <p>
+ * A lane may also have a token bucket of its own. While the bucket is empty the lane
+ * counts as idle, and takers wait for the earliest token once every lane is.
+ */
+class LaneQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+    private static final int QUANTUM = 16;
+
+    private final Lane[] lanes;
+    private final ToIntFunction<Runnable> laneOf;
+    private final ToIntFunction<Runnable> costOf;
+    private final ReentrantLock lock;
+    private final Condition notEmpty;
+
+    private int size;
+    private int current;
+
+    /**
+     * @param buckets token bucket of every lane, null for a lane without a rate limit
+     */
+    LaneQueue(
+            int[] weights,
+            int[] limits,
+            TokenBucket[] buckets,
+            ToIntFunction<Runnable> laneOf,
+            ToIntFunction<Runnable> costOf
+    ) {
+        this.lanes = new Lane[weights.length];
+        for (int i = 0; i < weights.length; ++i) {
+            lanes[i] = new Lane(weights[i], limits[i], buckets[i]);
+        }
+        this.laneOf = laneOf;
+        this.costOf = costOf;
+        this.lock = new ReentrantLock();
+        this.notEmpty = lock.newCondition();
+    }
+
+    /**
+     * Takes room for {@code tasks} tasks in the lane, it is given back as they are dequeued.
+     */
+    boolean tryReserve(int lane, int tasks) {
+        return lanes[lane].capacity.tryAcquire(tasks);
+    }
+
+    /**
+     * Waits for room in the lane, see {@link Capacity#acquire(int, long, TimeUnit)}.
+     */
+    boolean reserve(int lane, int tasks, long timeout, TimeUnit unit) throws InterruptedException {
+        return lanes[lane].capacity.acquire(tasks, timeout, unit);
+    }
+
+    /**
+     * Takes room in the lane regardless of its limit, see {@link Capacity#forceAcquire(int)}.
+     */
+    void reserve(int lane, int tasks) {
+        lanes[lane].capacity.forceAcquire(tasks);
+    }
+
+    /**
+     * Gives back room taken for tasks that did not make it into the queue.
+     */
+    void release(int lane, int tasks) {
+        lanes[lane].capacity.release(tasks);
+    }
+
+    /**
+     * Wakes up producers waiting for room in a lane, they fail instead of getting it.
+     */
+    void close() {
+        for (Lane lane : lanes) {
+            lane.capacity.close();
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable work) {
+        Lane lane = lanes[laneOf.applyAsInt(work)];
+        lock.lock();
+        try {
+            lane.queue.add(work);
+            ++size;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Runnable work) {
+        offer(work);
+    }
+
+    @Override
+    public boolean offer(Runnable work, long timeout, TimeUnit unit) {
+        return offer(work);
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return dequeue(true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            Runnable work;
+            while ((work = dequeue(true)) == null) {
+                notEmpty.awaitNanos(tokenDelay());
+            }
+            return work;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            Runnable work;
+            while ((work = dequeue(true)) == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                long wait = Math.min(nanos, tokenDelay());
+                nanos -= wait - notEmpty.awaitNanos(wait);
+            }
+            return work;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            for (int i = 0; i < lanes.length; ++i) {
+                Runnable head = lanes[(current + i) % lanes.length].queue.peek();
+                if (head != null) {
+                    return head;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> target) {
+        return drainTo(target, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> target, int maxElements) {
+        lock.lock();
+        try {
+            int drained = 0;
+            Runnable work;
+            while (drained < maxElements && (work = dequeue(false)) != null) {
+                target.add(work);
+                ++drained;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Iterator<Runnable> iterator() {
+        lock.lock();
+        try {
+            List<Runnable> snapshot = new ArrayList<>(size);
+            for (Lane lane : lanes) {
+                snapshot.addAll(lane.queue);
+            }
+            return snapshot.iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Holding the lock. Without pacing, e.g. when draining, lanes hand work out regardless of their tokens.
+    private Runnable dequeue(boolean paced) {
+        if (size == 0) {
+            return null;
+        }
+        long now = System.nanoTime();
+        // Lanes in a row that had nothing to hand out, a full round of them means waiting for a token
+        int idle = 0;
+        while (true) {
+            Lane lane = lanes[current];
+            Runnable head = lane.queue.peek();
+            if (head == null || paced && lane.bucket != null && lane.bucket.delay(now) > 0) {
+                // An idle lane does not bank credit
+                lane.deficit = 0;
+                if (++idle > lanes.length) {
+                    return null;
+                }
+            } else {
+                idle = 0;
+                int cost = costOf.applyAsInt(head);
+                if (cost <= lane.deficit) {
+                    lane.queue.poll();
+                    lane.deficit -= cost;
+                    lane.capacity.release(cost);
+                    if (paced && lane.bucket != null) {
+                        lane.bucket.tryAcquire(now);
+                    }
+                    --size;
+                    return head;
+                }
+            }
+            current = (current + 1) % lanes.length;
+            lanes[current].deficit += lanes[current].weight * QUANTUM;
+        }
+    }
+
+    // Holding the lock, how long until some lane with work has a token again
+    private long tokenDelay() {
+        if (size == 0) {
+            return Long.MAX_VALUE;
+        }
+        long now = System.nanoTime();
+        long delay = Long.MAX_VALUE;
+        for (Lane lane : lanes) {
+            if (!lane.queue.isEmpty()) {
+                delay = Math.min(delay, lane.bucket == null ? 0 : lane.bucket.delay(now));
+            }
+        }
+        return delay;
+    }
+
+    private static final class Lane {
+        final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+        final int weight;
+        final Capacity capacity;
+        final TokenBucket bucket;
+        long deficit;
+
+        Lane(int weight, int limit, TokenBucket bucket) {
+            this.weight = weight;
+            this.capacity = new CountedCapacity(limit);
+            this.bucket = bucket;
+        }
+    }
+}
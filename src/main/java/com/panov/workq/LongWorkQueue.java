@@ -0,0 +1,69 @@
+package com.panov.workq;
+
+import java.util.Objects;
+
+/**
+ * {@link WorkQueue} counterpart for {@code long} tasks and results, which are kept in
+ * primitive arrays end to end, so millions of tasks do not turn into millions of boxes.
+ * <p>
+ * Workers only run during {@link #execute()}, tasks added by handlers join the running round.
+ */
+public class LongWorkQueue extends PrimitiveWorkQueue {
+    private final Handler handler;
+
+    public LongWorkQueue(Handler handler, int maxQueueSize, int maxWorkers, int executionTimeout) {
+        super(maxQueueSize, maxWorkers, executionTimeout);
+        this.handler = Objects.requireNonNull(handler);
+    }
+
+    public void add(long task) {
+        acquire(1);
+        synchronized (this) {
+            Round round = reserve(1);
+            int id = round.size();
+            ((long[]) round.taskSegment(id))[id & SEGMENT_MASK] = task;
+            publish(round, id + 1);
+        }
+    }
+
+    /**
+     * Adds the tasks as one batch, they get consecutive ids.
+     */
+    public void addAll(long... tasks) {
+        acquire(tasks.length);
+        synchronized (this) {
+            Round round = reserve(tasks.length);
+            int id = round.size();
+            for (long task : tasks) {
+                ((long[]) round.taskSegment(id))[id & SEGMENT_MASK] = task;
+                ++id;
+            }
+            publish(round, id);
+        }
+    }
+
+    /**
+     * Waits until every task of the current round, including the ones handlers add along
+     * the way, has finished and returns their results in submission order. Tasks whose
+     * handler threw have no result.
+     */
+    public long[] execute() throws InterruptedException {
+        return (long[]) executeRound();
+    }
+
+    @Override
+    Object newArray(int length) {
+        return new long[length];
+    }
+
+    @Override
+    void runTask(Round round, int id) {
+        long task = ((long[]) round.taskSegment(id))[id & SEGMENT_MASK];
+        ((long[]) round.resultSegment(id))[id & SEGMENT_MASK] = handler.apply(task, this);
+    }
+
+    @FunctionalInterface
+    public interface Handler {
+        long apply(long task, LongWorkQueue queue);
+    }
+}
@@ -0,0 +1,152 @@
+package com.panov.workq;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.ToLongBiFunction;
+
+/**
+ * Results of a handler keyed by task, bounded by total weight and optionally by age.
+ * <p>
+ * Identical tasks arriving while the first one is still running wait for its result
+ * instead of running the handler again. Eviction is a clock sweep over insertion order:
+ * a hit only flags the entry, which buys it one more pass, so lookups never take a lock.
+ */
+class MemoCache<K, V> {
+    private final Map<K, Entry<K, V>> entries;
+    private final Queue<Entry<K, V>> order;
+    private final AtomicLong weight;
+    private final ReentrantLock evictionLock;
+    private final long maxWeight;
+    private final long timeToLive;
+    private final ToLongBiFunction<? super K, ? super V> weigher;
+
+    /**
+     * @param timeToLive nanoseconds a result stays valid, zero for no limit
+     */
+    MemoCache(long maxWeight, long timeToLive, ToLongBiFunction<? super K, ? super V> weigher) {
+        this.entries = new ConcurrentHashMap<>();
+        this.order = new ConcurrentLinkedQueue<>();
+        this.weight = new AtomicLong(0);
+        this.evictionLock = new ReentrantLock();
+        this.maxWeight = maxWeight;
+        this.timeToLive = timeToLive;
+        this.weigher = weigher;
+    }
+
+    /**
+     * Returns the cached result for the key, waits for the running computation of it,
+     * or computes it on the calling thread. A failed computation is not cached, and the
+     * callers that waited for it fail the same way.
+     */
+    V get(K key, Function<? super K, ? extends V> loader) throws InterruptedException {
+        while (true) {
+            Entry<K, V> existing = entries.get(key);
+            if (existing == null) {
+                Entry<K, V> loading = new Entry<>(key);
+                existing = entries.putIfAbsent(key, loading);
+                if (existing == null) {
+                    return load(loading, loader);
+                }
+            }
+            if (existing.isExpired(System.nanoTime())) {
+                remove(existing);
+                continue;
+            }
+            existing.referenced = true;
+            return await(existing);
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private V load(Entry<K, V> entry, Function<? super K, ? extends V> loader) {
+        V value;
+        try {
+            value = loader.apply(entry.key);
+        } catch (RuntimeException | Error e) {
+            entries.remove(entry.key, entry);
+            entry.result.completeExceptionally(e);
+            throw e;
+        }
+        entry.weight = weigher.applyAsLong(entry.key, value);
+        entry.expiresAt = timeToLive == 0 ? Long.MAX_VALUE : System.nanoTime() + timeToLive;
+        entry.result.complete(value);
+        admit(entry);
+        return value;
+    }
+
+    private V await(Entry<K, V> entry) throws InterruptedException {
+        try {
+            return entry.result.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (CancellationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void admit(Entry<K, V> entry) {
+        order.add(entry);
+        if (weight.addAndGet(entry.weight) <= maxWeight) {
+            return;
+        }
+        evictionLock.lock();
+        try {
+            long now = System.nanoTime();
+            Entry<K, V> candidate;
+            while (weight.get() > maxWeight && (candidate = order.poll()) != null) {
+                if (entries.get(candidate.key) != candidate) {
+                    continue;
+                }
+                if (candidate.referenced && !candidate.isExpired(now)) {
+                    candidate.referenced = false;
+                    order.add(candidate);
+                } else {
+                    remove(candidate);
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void remove(Entry<K, V> entry) {
+        if (entries.remove(entry.key, entry)) {
+            weight.addAndGet(-entry.weight);
+        }
+    }
+
+    private static final class Entry<K, V> {
+        final K key;
+        final CompletableFuture<V> result = new CompletableFuture<>();
+        // Written before the result completes, so readers that see it done see them too
+        long weight;
+        volatile long expiresAt = Long.MAX_VALUE;
+        volatile boolean referenced;
+
+        Entry(K key) {
+            this.key = key;
+        }
+
+        // An entry that is still loading never expires
+        boolean isExpired(long now) {
+            return now - expiresAt > 0;
+        }
+    }
+}
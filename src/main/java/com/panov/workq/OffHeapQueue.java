@@ -0,0 +1,319 @@
+package com.panov.workq;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Task queue that keeps its work encoded in direct memory, so a backlog of millions of
+ * tasks is a handful of buffers to the garbage collector rather than millions of objects.
+ * <p>
+ * Records are appended to fixed size segments that are read front to back, a drained
+ * segment is kept for reuse, so the segments form a ring that grows only while the
+ * backlog does. A record is a length followed by the encoded work. Work the codec can
+ * not encode stays on the heap, a record of length {@link #ON_HEAP} marks its place
+ * so the queue stays in FIFO order. Work is decoded as it is taken, only the tasks
+ * about to run ever exist as objects again.
+ * <p>
+ * Segments are direct buffers unless the queue is given other {@link Segments}.
+ */
+class OffHeapQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+    private static final int ON_HEAP = -1;
+
+    /**
+     * How the queued work is laid out in bytes.
+     */
+    interface Codec {
+        /**
+         * Bytes the work takes encoded, {@link #ON_HEAP} for work that has to stay an object.
+         */
+        int encodedSize(Runnable work);
+
+        void encode(Runnable work, ByteBuffer target);
+
+        /**
+         * The buffer holds the bytes of exactly one piece of work.
+         */
+        Runnable decode(ByteBuffer source);
+    }
+
+    /**
+     * Where segments come from and go to, called holding the queue's lock.
+     */
+    interface Segments {
+        ByteBuffer allocate(int bytes);
+
+        /**
+         * The segment is drained and will not be touched again.
+         */
+        default void release(ByteBuffer segment) {
+        }
+    }
+
+    private final Codec codec;
+    private final int segmentSize;
+    private final Segments allocator;
+    private final ArrayDeque<Segment> segments;
+    private final ArrayDeque<Runnable> onHeap;
+    private final ReentrantLock lock;
+    private final Condition notEmpty;
+
+    // A drained segment kept around, allocating direct memory is expensive
+    private Segment spare;
+    private int size;
+
+    OffHeapQueue(Codec codec, int segmentSize) {
+        this(codec, segmentSize, ByteBuffer::allocateDirect);
+    }
+
+    OffHeapQueue(Codec codec, int segmentSize, Segments allocator) {
+        this.codec = codec;
+        this.segmentSize = segmentSize;
+        this.allocator = allocator;
+        this.segments = new ArrayDeque<>();
+        this.onHeap = new ArrayDeque<>();
+        this.lock = new ReentrantLock();
+        this.notEmpty = lock.newCondition();
+    }
+
+    @Override
+    public boolean offer(Runnable work) {
+        int length = codec.encodedSize(work);
+        lock.lock();
+        try {
+            Segment segment = segmentFor(Integer.BYTES + Math.max(0, length));
+            if (length == ON_HEAP) {
+                onHeap.add(work);
+            } else {
+                encode(work, segment, length);
+            }
+            segment.buffer.putInt(segment.write, length);
+            segment.write += Integer.BYTES + Math.max(0, length);
+            ++size;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Runnable work) {
+        offer(work);
+    }
+
+    @Override
+    public boolean offer(Runnable work, long timeout, TimeUnit unit) {
+        return offer(work);
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            if (size == 0) {
+                return null;
+            }
+            Segment segment = segments.getFirst();
+            return read(segment, segment.read, onHeap.peek());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> target) {
+        return drainTo(target, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> target, int maxElements) {
+        lock.lock();
+        try {
+            int drained = 0;
+            Runnable work;
+            while (drained < maxElements && (work = dequeue()) != null) {
+                target.add(work);
+                ++drained;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Decodes every queued piece of work, meant for inspection only
+    @Override
+    public Iterator<Runnable> iterator() {
+        lock.lock();
+        try {
+            List<Runnable> snapshot = new ArrayList<>(size);
+            Iterator<Runnable> heapWork = onHeap.iterator();
+            for (Segment segment : segments) {
+                int position = segment.read;
+                while (position < segment.write) {
+                    int length = segment.buffer.getInt(position);
+                    snapshot.add(read(segment, position, length == ON_HEAP ? heapWork.next() : null));
+                    position += Integer.BYTES + Math.max(0, length);
+                }
+            }
+            return snapshot.iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Holding the lock. Work that fails to encode leaves no record behind, nor a segment of its own.
+    private void encode(Runnable work, Segment segment, int length) {
+        try {
+            codec.encode(work, segment.buffer.slice(segment.write + Integer.BYTES, length));
+        } catch (RuntimeException | Error e) {
+            if (segment.write == 0 && segments.size() > 1) {
+                segments.removeLast();
+                recycle(segment);
+            }
+            throw e;
+        }
+    }
+
+    // Holding the lock
+    private Runnable dequeue() {
+        if (size == 0) {
+            return null;
+        }
+        Segment segment = segments.getFirst();
+        int length = segment.buffer.getInt(segment.read);
+        Runnable work = read(segment, segment.read, length == ON_HEAP ? onHeap.poll() : null);
+        segment.read += Integer.BYTES + Math.max(0, length);
+        --size;
+        if (segment.read == segment.write) {
+            segments.removeFirst();
+            recycle(segment);
+        }
+        return work;
+    }
+
+    private Runnable read(Segment segment, int position, Runnable heapWork) {
+        int length = segment.buffer.getInt(position);
+        return length == ON_HEAP ? heapWork : codec.decode(segment.buffer.slice(position + Integer.BYTES, length));
+    }
+
+    // Holding the lock. A record never spans segments, one too big for a segment gets its own.
+    private Segment segmentFor(int bytes) {
+        Segment last = segments.peekLast();
+        if (last != null && last.buffer.capacity() - last.write >= bytes) {
+            return last;
+        }
+        Segment segment;
+        if (spare != null && bytes <= segmentSize) {
+            segment = spare;
+            spare = null;
+        } else {
+            segment = new Segment(allocator.allocate(Math.max(segmentSize, bytes)));
+        }
+        segments.addLast(segment);
+        return segment;
+    }
+
+    /**
+     * Gives every segment back, along with whatever is still queued in them.
+     */
+    void release() {
+        lock.lock();
+        try {
+            segments.forEach(segment -> allocator.release(segment.buffer));
+            segments.clear();
+            onHeap.clear();
+            size = 0;
+            if (spare != null) {
+                allocator.release(spare.buffer);
+                spare = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void recycle(Segment segment) {
+        if (spare == null && segment.buffer.capacity() == segmentSize) {
+            segment.read = 0;
+            segment.write = 0;
+            spare = segment;
+        } else {
+            allocator.release(segment.buffer);
+        }
+    }
+
+    private static final class Segment {
+        final ByteBuffer buffer;
+        int read;
+        int write;
+
+        Segment(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+}
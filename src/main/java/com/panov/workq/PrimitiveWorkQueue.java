@@ -0,0 +1,314 @@
+package com.panov.workq;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared machinery of the primitive work queues.
+ * <p>
+ * Tasks and results of a round live in primitive arrays, split into fixed-size segments
+ * and indexed by task id. Workers claim ranges of ids straight from the round instead of
+ * taking one queued object per task, so running a task allocates nothing and neither
+ * tasks nor results are ever boxed.
+ */
+abstract class PrimitiveWorkQueue implements AutoCloseable {
+    static final int SEGMENT_SHIFT = 10;
+    static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private static final int MAX_CHUNK_SIZE = 256;
+    private static final int CHUNKS_PER_WORKER = 4;
+    private static final long KEEP_ALIVE_TIME = 60_000;
+
+    // Only ever holds the drainers of the running round
+    private final BlockingQueue<Runnable> taskQueue;
+    private final Capacity capacity;
+    private final int maxWorkers;
+    private final int executionTimeout;
+
+    private volatile Round round;
+    private volatile Dispatcher dispatcher;
+    private volatile boolean closed;
+
+    PrimitiveWorkQueue(int maxQueueSize, int maxWorkers, int executionTimeout) {
+        if (maxWorkers < 1) {
+            throw new IllegalArgumentException("Workers range is invalid");
+        }
+        this.taskQueue = new LinkedBlockingQueue<>();
+        this.capacity = new CountedCapacity(maxQueueSize);
+        this.maxWorkers = maxWorkers;
+        this.executionTimeout = executionTimeout;
+        this.round = new Round();
+    }
+
+    /**
+     * Allocates a primitive array of the queue's element type.
+     */
+    abstract Object newArray(int length);
+
+    /**
+     * Runs the handler on the task stored under {@code id} and stores its result under the same id.
+     */
+    abstract void runTask(Round round, int id);
+
+    /**
+     * Stops accepting tasks and shuts the workers down. Tasks that are still queued
+     * are discarded and running handlers are interrupted.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        abandon(round);
+        capacity.close();
+        Dispatcher dispatcher = this.dispatcher;
+        if (dispatcher != null) {
+            dispatcher.shutdownNow();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Takes room for {@code count} tasks, has to be followed by {@link #reserve(int)}.
+     */
+    final void acquire(int count) {
+        ensureOpen();
+        if (!capacity.tryAcquire(count)) {
+            throw new IllegalStateException("Tasks queue limit is reached");
+        }
+    }
+
+    /**
+     * Makes room for {@code count} tasks in the current round, which start at its
+     * {@link Round#size() size}. The caller has to hold the monitor, write the tasks
+     * and {@link #publish(Round, int) publish} them.
+     */
+    final Round reserve(int count) {
+        if (closed) {
+            capacity.release(count);
+            ensureOpen();
+        }
+        Round round = this.round;
+        round.ensureCapacity(round.size + count);
+        return round;
+    }
+
+    final void publish(Round round, int size) {
+        round.size = size;
+        spawnDrainers(round);
+    }
+
+    /**
+     * Runs the current round and returns its results in submission order, skipping the
+     * tasks whose handler threw.
+     */
+    final Object executeRound() throws InterruptedException {
+        ensureOpen();
+        Dispatcher dispatcher = new WorkerPool(taskQueue, 1, maxWorkers, KEEP_ALIVE_TIME);
+        this.dispatcher = dispatcher;
+        Round round;
+        try {
+            dispatcher.start();
+            round = awaitRound();
+        } finally {
+            this.dispatcher = null;
+            dispatcher.shutdownNow();
+        }
+        if (round == null) {
+            throw new IllegalStateException("Process has been executing too long");
+        }
+        return round.collectResults();
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("WorkQueue is closed");
+        }
+    }
+
+    // Keeps up to one drainer per worker busy while the round has unclaimed tasks
+    private void spawnDrainers(Round round) {
+        Dispatcher dispatcher = this.dispatcher;
+        if (dispatcher == null) {
+            return;
+        }
+        int wanted = Math.min(maxWorkers, round.size - round.next.get());
+        for (int drainers = round.drainers.get(); drainers < wanted; drainers = round.drainers.get()) {
+            if (round.drainers.compareAndSet(drainers, drainers + 1)) {
+                taskQueue.add(round);
+                dispatcher.signal();
+            }
+        }
+    }
+
+    private synchronized Round awaitRound() throws InterruptedException {
+        Round round = this.round;
+        spawnDrainers(round);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(executionTimeout);
+        while (round.completed.get() < round.size) {
+            ensureOpen();
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                abandon(round);
+                return null;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        this.round = new Round();
+        return round;
+    }
+
+    // Holds the monitor, so no task can be added to the round meanwhile
+    private void abandon(Round round) {
+        round.abandoned = true;
+        taskQueue.clear();
+        // Claiming everything left keeps drainers that are still running from starting more tasks
+        capacity.release(round.size - round.next.getAndSet(round.size));
+        this.round = new Round();
+    }
+
+    private int chunkSize(int unclaimed) {
+        return Math.max(1, Math.min(MAX_CHUNK_SIZE, unclaimed / (maxWorkers * CHUNKS_PER_WORKER)));
+    }
+
+    /**
+     * The tasks added between two {@code execute()} calls, plus the subtasks their handlers add.
+     * As a runnable it is a drainer, which claims and runs ranges of tasks until none are left.
+     */
+    final class Round implements Runnable {
+        // Written under the queue's monitor, after the tasks they expose
+        private volatile Object[] tasks;
+        private volatile Object[] results;
+        private volatile int size;
+        private int segments;
+
+        private final AtomicInteger next;
+        private final AtomicInteger completed;
+        private final AtomicInteger drainers;
+        // Guarded by itself, read without the lock once the round is over
+        private final BitSet failed;
+        private volatile int failedCount;
+        private volatile boolean abandoned;
+
+        private Round() {
+            this.tasks = new Object[1];
+            this.results = new Object[1];
+            this.next = new AtomicInteger(0);
+            this.completed = new AtomicInteger(0);
+            this.drainers = new AtomicInteger(0);
+            this.failed = new BitSet();
+        }
+
+        int size() {
+            return size;
+        }
+
+        Object taskSegment(int id) {
+            return tasks[id >>> SEGMENT_SHIFT];
+        }
+
+        Object resultSegment(int id) {
+            return results[id >>> SEGMENT_SHIFT];
+        }
+
+        @Override
+        public void run() {
+            Thread current = Thread.currentThread();
+            try {
+                while (!abandoned) {
+                    int size = this.size;
+                    int from = next.get();
+                    int to = Math.min(size, from + chunkSize(size - from));
+                    if (from >= to) {
+                        return;
+                    }
+                    if (!next.compareAndSet(from, to)) {
+                        continue;
+                    }
+                    capacity.release(to - from);
+                    for (int id = from; id < to; ++id) {
+                        try {
+                            runTask(this, id);
+                        } catch (RuntimeException | Error e) {
+                            markFailed(id);
+                            current.getUncaughtExceptionHandler().uncaughtException(current, e);
+                        }
+                    }
+                    // Tasks add their subtasks before they count as completed, so once
+                    // every task is completed nothing can be added by the round itself
+                    if (completed.addAndGet(to - from) == this.size) {
+                        synchronized (PrimitiveWorkQueue.this) {
+                            PrimitiveWorkQueue.this.notifyAll();
+                        }
+                    }
+                }
+            } finally {
+                drainers.decrementAndGet();
+                // A task may have been added right after this drainer found nothing to claim
+                if (!abandoned && next.get() < this.size) {
+                    spawnDrainers(this);
+                }
+            }
+        }
+
+        private void ensureCapacity(int capacity) {
+            int wanted = (capacity + SEGMENT_MASK) >>> SEGMENT_SHIFT;
+            if (wanted <= segments) {
+                return;
+            }
+            int length = tasks.length;
+            while (length < wanted) {
+                length <<= 1;
+            }
+            // Copy on write, so workers always see fully built segments
+            Object[] grownTasks = Arrays.copyOf(tasks, length);
+            Object[] grownResults = Arrays.copyOf(results, length);
+            for (int i = segments; i < wanted; ++i) {
+                grownTasks[i] = newArray(SEGMENT_SIZE);
+                grownResults[i] = newArray(SEGMENT_SIZE);
+            }
+            segments = wanted;
+            tasks = grownTasks;
+            results = grownResults;
+        }
+
+        private void markFailed(int id) {
+            synchronized (failed) {
+                failed.set(id);
+                ++failedCount;
+            }
+        }
+
+        // Copies the results between failed tasks segment by segment
+        private Object collectResults() {
+            Object collected = newArray(size - failedCount);
+            int at = 0;
+            int from = 0;
+            while (from < size) {
+                int to = failedCount == 0 ? size : failed.nextSetBit(from);
+                if (to < 0) {
+                    to = size;
+                }
+                copyResults(from, to, collected, at);
+                at += to - from;
+                from = to + 1;
+            }
+            return collected;
+        }
+
+        private void copyResults(int from, int to, Object target, int at) {
+            while (from < to) {
+                int length = Math.min(to - from, SEGMENT_SIZE - (from & SEGMENT_MASK));
+                System.arraycopy(resultSegment(from), from & SEGMENT_MASK, target, at, length);
+                from += length;
+                at += length;
+            }
+        }
+    }
+}
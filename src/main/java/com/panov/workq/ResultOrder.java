@@ -0,0 +1,12 @@
+package com.panov.workq;
+
+public enum ResultOrder {
+    /**
+     * Results are handed out as soon as their tasks finish.
+     */
+    COMPLETION,
+    /**
+     * Results are handed out in the order their tasks were added.
+     */
+    SUBMISSION
+}
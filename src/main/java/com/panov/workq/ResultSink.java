@@ -0,0 +1,40 @@
+package com.panov.workq;
+
+/**
+ * Receives the outcome of every task of a round.
+ */
+interface ResultSink<R> {
+    /**
+     * Stands in for a null result, so an empty slot can still mean "nothing yet".
+     */
+    Object NULL_RESULT = new Object();
+
+    /**
+     * Called on the worker before the handler runs, lets the sink hold back tasks it has no room for.
+     */
+    default void awaitTurn(int id) throws InterruptedException {
+    }
+
+    void accept(int id, R result);
+
+    void reject(int id, TaskResult<R> failure);
+
+    /**
+     * Called on the worker when a task that got through {@link #awaitTurn(int)} ends without
+     * a result. Tasks that fail before their turn, or without waiting for one, do not call it.
+     */
+    default void releaseTurn(int id) {
+    }
+
+    /**
+     * Called when the round has no pending tasks left.
+     */
+    default void onIdle() {
+    }
+
+    /**
+     * Stands in for a task that finished without producing a result.
+     */
+    record Failure(TaskResult<?> outcome) {
+    }
+}
@@ -0,0 +1,122 @@
+package com.panov.workq;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Results of a round indexed directly by task id.
+ * <p>
+ * Slots live in fixed-size segments that are allocated when ids are handed out,
+ * so storing a result is a single wait-free write and reading them back in
+ * submission order needs no sorting.
+ */
+class ResultStore<R> implements ResultSink<R> {
+    private static final int SEGMENT_SHIFT = 10;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private volatile AtomicReferenceArray<Object>[] segments;
+
+    ResultStore() {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        AtomicReferenceArray<Object>[] initial = new AtomicReferenceArray[1];
+        segments = initial;
+    }
+
+    /**
+     * Makes sure slots {@code [0, size)} exist. Has to happen before their results are stored.
+     */
+    void reserve(int size) {
+        if (size <= 0) {
+            return;
+        }
+        int last = (size - 1) >>> SEGMENT_SHIFT;
+        AtomicReferenceArray<Object>[] current = segments;
+        if (last >= current.length || current[last] == null) {
+            grow(last);
+        }
+    }
+
+    void set(int id, R result) {
+        segments[id >>> SEGMENT_SHIFT].set(id & SEGMENT_MASK, result == null ? NULL_RESULT : result);
+    }
+
+    @Override
+    public void accept(int id, R result) {
+        set(id, result);
+    }
+
+    @Override
+    public void reject(int id, TaskResult<R> failure) {
+        segments[id >>> SEGMENT_SHIFT].set(id & SEGMENT_MASK, new Failure(failure));
+    }
+
+    /**
+     * Moves the outcome stored under {@code id}, if any, to a stream. Safe to race with
+     * another transfer of the same id, exactly one of them hands the outcome over.
+     */
+    void transfer(int id, ResultStream<R> target) {
+        Object value = segments[id >>> SEGMENT_SHIFT].getAndSet(id & SEGMENT_MASK, null);
+        if (value != null) {
+            target.backfill(id, value);
+        }
+    }
+
+    /**
+     * Results of ids {@code [0, size)} in id order. Tasks that did not produce a result are skipped.
+     */
+    @SuppressWarnings("unchecked")
+    List<R> toList(int size) {
+        AtomicReferenceArray<Object>[] current = segments;
+        List<R> results = new ArrayList<>(size);
+        for (int id = 0; id < size; ++id) {
+            Object value = current[id >>> SEGMENT_SHIFT].get(id & SEGMENT_MASK);
+            if (value != null && !(value instanceof Failure)) {
+                results.add(value == NULL_RESULT ? null : (R) value);
+            }
+        }
+        return Collections.unmodifiableList(results);
+    }
+
+    /**
+     * Outcomes of ids {@code [0, size)} in id order. Tasks that have not finished yet count as cancelled.
+     */
+    @SuppressWarnings("unchecked")
+    List<TaskResult<R>> toOutcomes(int size) {
+        AtomicReferenceArray<Object>[] current = segments;
+        List<TaskResult<R>> outcomes = new ArrayList<>(size);
+        for (int id = 0; id < size; ++id) {
+            Object value = current[id >>> SEGMENT_SHIFT].get(id & SEGMENT_MASK);
+            if (value == null) {
+                outcomes.add(TaskResult.cancelled());
+            } else if (value instanceof Failure failure) {
+                outcomes.add((TaskResult<R>) failure.outcome());
+            } else {
+                outcomes.add(TaskResult.completed(value == NULL_RESULT ? null : (R) value));
+            }
+        }
+        return Collections.unmodifiableList(outcomes);
+    }
+
+    private synchronized void grow(int last) {
+        AtomicReferenceArray<Object>[] current = segments;
+        if (last < current.length && current[last] != null) {
+            return;
+        }
+        int length = current.length;
+        while (length <= last) {
+            length <<= 1;
+        }
+        // Copy on write, so lock-free readers always see fully built segments
+        AtomicReferenceArray<Object>[] grown = Arrays.copyOf(current, length);
+        for (int i = 0; i <= last; ++i) {
+            if (grown[i] == null) {
+                grown[i] = new AtomicReferenceArray<>(SEGMENT_SIZE);
+            }
+        }
+        segments = grown;
+    }
+}
@@ -0,0 +1,136 @@
+package com.panov.workq;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands the results of a round to a consumer while the round is still running.
+ * <p>
+ * Memory use is bounded by pacing: subclasses hold tasks back in {@link #awaitTurn(int)}
+ * until the consumer has made room for their results. Results that were already stored
+ * when the stream was attached are {@link #backfill(int, Object) backfilled} unpaced.
+ */
+abstract class ResultStream<R> implements ResultSink<R>, Iterator<R> {
+    /**
+     * The queue side of a stream.
+     */
+    interface Owner {
+        /**
+         * Closes the round if it has no pending tasks and tells whether it did.
+         */
+        boolean finishRound();
+
+        void release(boolean finished);
+    }
+
+    protected final ReentrantLock lock;
+    protected final Condition available;
+    protected final Condition slotFreed;
+
+    private final AtomicInteger pendingTasks;
+    private final long deadline;
+    private final Owner owner;
+
+    private Object next;
+    private boolean finished;
+
+    ResultStream(AtomicInteger pendingTasks, int executionTimeout, Owner owner) {
+        this.lock = new ReentrantLock();
+        this.available = lock.newCondition();
+        this.slotFreed = lock.newCondition();
+        this.pendingTasks = pendingTasks;
+        this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(executionTimeout);
+        this.owner = owner;
+    }
+
+    /**
+     * Takes the next deliverable value, called with the lock held.
+     */
+    protected abstract Object poll();
+
+    /**
+     * Adds an outcome that was stored before the stream was attached, never blocks.
+     */
+    abstract void backfill(int id, Object value);
+
+    @Override
+    public void onIdle() {
+        lock.lock();
+        try {
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null && !finished) {
+            Object value;
+            try {
+                value = awaitNext();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new IllegalStateException("Interrupted while waiting for results", e);
+            }
+            if (value != null) {
+                next = value;
+            } else if (pendingTasks.get() > 0) {
+                close();
+                throw new IllegalStateException("Process has been executing too long");
+            } else if (owner.finishRound()) {
+                finished = true;
+                owner.release(true);
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public R next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Object value = next;
+        next = null;
+        return value == NULL_RESULT ? null : (R) value;
+    }
+
+    /**
+     * Gives up on the round if it has not been consumed to the end.
+     */
+    void close() {
+        if (!finished) {
+            finished = true;
+            owner.release(false);
+        }
+    }
+
+    // Returns null once the round has no pending tasks left or the deadline has passed
+    private Object awaitNext() throws InterruptedException {
+        lock.lock();
+        try {
+            Object value;
+            while ((value = poll()) == null && pendingTasks.get() > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                available.awaitNanos(remaining);
+            }
+            return value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    protected static Object wrap(Object result) {
+        return result == null ? NULL_RESULT : result;
+    }
+}
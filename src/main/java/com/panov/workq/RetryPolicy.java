@@ -0,0 +1,120 @@
+package com.panov.workq;
+
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+
+/**
+ * When and how soon a task whose handler threw runs again, see {@link WorkQueue.Builder#retry(RetryPolicy)}.
+ * <p>
+ * The pause before attempt {@code n + 1} is {@code initialBackoff * multiplier^(n - 1)}, capped at
+ * {@code maxBackoff}, then shortened by a random share of up to {@code jitter} of itself, so
+ * tasks that failed together do not all come back at the same moment.
+ */
+public final class RetryPolicy {
+    private final int maxAttempts;
+    private final long initialBackoff;
+    private final long maxBackoff;
+    private final double multiplier;
+    private final double jitter;
+    private final Predicate<? super Throwable> retryOn;
+
+    private RetryPolicy(Builder builder) {
+        if (builder.maxAttempts < 1) {
+            throw new IllegalArgumentException("Max attempts must be positive");
+        }
+        if (builder.initialBackoff < 0 || builder.maxBackoff < builder.initialBackoff) {
+            throw new IllegalArgumentException("Backoff range is invalid");
+        }
+        if (builder.multiplier < 1) {
+            throw new IllegalArgumentException("Backoff multiplier can not be less than 1");
+        }
+        if (builder.jitter < 0 || builder.jitter > 1) {
+            throw new IllegalArgumentException("Jitter must be between 0 and 1");
+        }
+        this.maxAttempts = builder.maxAttempts;
+        this.initialBackoff = builder.initialBackoff;
+        this.maxBackoff = builder.maxBackoff;
+        this.multiplier = builder.multiplier;
+        this.jitter = builder.jitter;
+        this.retryOn = builder.retryOn;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * How many times a task runs at most, the first run included.
+     */
+    public int maxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Whether a task that threw the given error on its {@code attempt}-th run gets another one.
+     */
+    public boolean retries(int attempt, Throwable error) {
+        return attempt < maxAttempts && retryOn.test(error);
+    }
+
+    /**
+     * Milliseconds to wait after the {@code attempt}-th run failed, jitter included.
+     */
+    public long backoff(int attempt) {
+        double backoff = Math.min(maxBackoff, initialBackoff * Math.pow(multiplier, attempt - 1));
+        return (long) (backoff * (1 - jitter * ThreadLocalRandom.current().nextDouble()));
+    }
+
+    public static final class Builder {
+        private int maxAttempts = 3;
+        private long initialBackoff = 10;
+        private long maxBackoff = 1_000;
+        private double multiplier = 2;
+        private double jitter = 0.5;
+        private Predicate<? super Throwable> retryOn = e -> e instanceof RuntimeException;
+
+        private Builder() {
+        }
+
+        public Builder maxAttempts(int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        /**
+         * Pause after the first failure and the cap the pauses grow to, in milliseconds.
+         * Default to 10 and 1000.
+         */
+        public Builder backoff(long initialBackoff, long maxBackoff) {
+            this.initialBackoff = initialBackoff;
+            this.maxBackoff = maxBackoff;
+            return this;
+        }
+
+        public Builder multiplier(double multiplier) {
+            this.multiplier = multiplier;
+            return this;
+        }
+
+        /**
+         * Share of a pause, from 0 to 1, that may be randomly cut off it. Defaults to 0.5.
+         */
+        public Builder jitter(double jitter) {
+            this.jitter = jitter;
+            return this;
+        }
+
+        /**
+         * Which failures are worth another attempt, by default any {@link RuntimeException}.
+         */
+        public Builder retryOn(Predicate<? super Throwable> retryOn) {
+            this.retryOn = Objects.requireNonNull(retryOn);
+            return this;
+        }
+
+        public RetryPolicy build() {
+            return new RetryPolicy(this);
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.panov.workq;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Task queue on a preallocated ring of slots, in the manner of the LMAX Disruptor. Producers
+ * and consumers each claim slots by moving a sequence of their own forward, and every slot
+ * carries the sequence it is due at, which tells whether it has been filled for the current
+ * lap. There are no locks and nothing is allocated per task.
+ * <p>
+ * Takers wait by a {@link WaitStrategy}, and once it tells them to block they wait on a
+ * lock, which producers only touch when someone does: adding a task costs no signalling
+ * while the takers keep up or spin. Work that finds the ring full goes to an overflow
+ * list, and so does the work added after it until the list has drained, keeping FIFO order.
+ */
+class RingBufferQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+    private final Runnable[] slots;
+    // The sequence each slot is due at: filled once it is its position plus one,
+    // free again for the next lap once it is its position plus the ring size
+    private final AtomicLongArray due;
+    private final int mask;
+    // Next sequence to take and next to fill
+    private final Sequence head;
+    private final Sequence tail;
+    private final ConcurrentLinkedQueue<Runnable> overflow;
+    private final WaitStrategy waitStrategy;
+    private final AtomicInteger waiters;
+    private final ReentrantLock lock;
+    private final Condition notEmpty;
+
+    /**
+     * @param size rounded up to a power of two
+     */
+    RingBufferQueue(int size, WaitStrategy waitStrategy) {
+        int capacity = Integer.highestOneBit(Math.min(Math.max(2, size), 1 << 30) - 1) << 1;
+        this.slots = new Runnable[capacity];
+        this.due = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; ++i) {
+            due.set(i, i);
+        }
+        this.mask = capacity - 1;
+        this.head = new Sequence();
+        this.tail = new Sequence();
+        this.overflow = new ConcurrentLinkedQueue<>();
+        this.waitStrategy = waitStrategy;
+        this.waiters = new AtomicInteger(0);
+        this.lock = new ReentrantLock();
+        this.notEmpty = lock.newCondition();
+    }
+
+    @Override
+    public boolean offer(Runnable work) {
+        if (work == null) {
+            throw new NullPointerException();
+        }
+        if (!overflow.isEmpty() || !publish(work)) {
+            overflow.add(work);
+        }
+        if (waiters.get() > 0) {
+            lock.lock();
+            try {
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void put(Runnable work) {
+        offer(work);
+    }
+
+    @Override
+    public boolean offer(Runnable work, long timeout, TimeUnit unit) {
+        return offer(work);
+    }
+
+    @Override
+    public Runnable poll() {
+        Runnable work = consume();
+        return work != null ? work : overflow.poll();
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        for (int attempt = 0; ; ++attempt) {
+            Runnable work = poll();
+            if (work != null) {
+                return work;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (!waitStrategy.idle(attempt)) {
+                return await(-1);
+            }
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (int attempt = 0; ; ++attempt) {
+            Runnable work = poll();
+            if (work != null) {
+                return work;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            if (!waitStrategy.idle(attempt)) {
+                return await(remaining);
+            }
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        long position = head.get();
+        int index = (int) position & mask;
+        Runnable work = due.get(index) == position + 1 ? slots[index] : null;
+        return work != null ? work : overflow.peek();
+    }
+
+    // Approximate while producers and consumers are at it, like any concurrent queue's
+    @Override
+    public int size() {
+        long inRing = Math.max(0, tail.get() - head.get());
+        return (int) Math.min(Integer.MAX_VALUE, inRing + overflow.size());
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> target) {
+        return drainTo(target, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> target, int maxElements) {
+        int drained = 0;
+        Runnable work;
+        while (drained < maxElements && (work = poll()) != null) {
+            target.add(work);
+            ++drained;
+        }
+        return drained;
+    }
+
+    // A snapshot, work taken meanwhile may still show up in it
+    @Override
+    public Iterator<Runnable> iterator() {
+        List<Runnable> snapshot = new ArrayList<>();
+        for (long position = head.get(), end = tail.get(); position < end; ++position) {
+            int index = (int) position & mask;
+            Runnable work = slots[index];
+            if (due.get(index) == position + 1 && work != null) {
+                snapshot.add(work);
+            }
+        }
+        snapshot.addAll(overflow);
+        return snapshot.iterator();
+    }
+
+    // Waits for as long as it takes with negative nanos, returns null once the time is up otherwise
+    private Runnable await(long nanos) throws InterruptedException {
+        lock.lockInterruptibly();
+        waiters.incrementAndGet();
+        try {
+            Runnable work;
+            // Registered as a waiter before checking again, so offer() can not miss us
+            while ((work = poll()) == null) {
+                if (nanos < 0) {
+                    notEmpty.await();
+                } else if (nanos == 0) {
+                    return null;
+                } else {
+                    nanos = Math.max(0, notEmpty.awaitNanos(nanos));
+                }
+            }
+            return work;
+        } finally {
+            waiters.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    private boolean publish(Runnable work) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long lag = due.get(index) - position;
+            if (lag == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots[index] = work;
+                    due.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (lag < 0) {
+                // The slot still holds work from the last lap, the ring is full
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    private Runnable consume() {
+        long position = head.get();
+        while (true) {
+            int index = (int) position & mask;
+            long lag = due.get(index) - (position + 1);
+            if (lag == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    Runnable work = slots[index];
+                    slots[index] = null;
+                    due.set(index, position + slots.length);
+                    return work;
+                }
+                position = head.get();
+            } else if (lag < 0) {
+                // Not filled yet, the ring is empty
+                return null;
+            } else {
+                position = head.get();
+            }
+        }
+    }
+
+    // Seven longs on either side keep the value on a cache line of its own, so the
+    // producers bumping the tail do not keep invalidating the consumers' head
+    abstract static class LeftPadding {
+        long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    abstract static class Value extends LeftPadding {
+        volatile long value;
+    }
+
+    static final class Sequence extends Value {
+        private static final VarHandle VALUE;
+
+        static {
+            try {
+                VALUE = MethodHandles.lookup().findVarHandle(Value.class, "value", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        long p9, p10, p11, p12, p13, p14, p15;
+
+        long get() {
+            return value;
+        }
+
+        boolean compareAndSet(long expected, long updated) {
+            return VALUE.compareAndSet(this, expected, updated);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.panov.workq;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Task queue split into shards, so that producers adding at the same time mostly touch
+ * different ones rather than all contending for the tail of a single queue. A producer
+ * sticks to the shard its thread maps to, which keeps its own tasks in order, while
+ * takers sweep the shards round robin, each sweep starting one shard further than the
+ * last. Order across producers is only roughly kept.
+ * <p>
+ * Takers that find every shard empty wait on a lock, which producers only touch when
+ * someone does.
+ */
+class ShardedQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+    private final ConcurrentLinkedQueue<Runnable>[] shards;
+    // Counted ahead of adding and after taking, so it may run ahead but never behind
+    private final LongAdder size;
+    private final AtomicInteger nextSweep;
+    private final AtomicInteger waiters;
+    private final ReentrantLock lock;
+    private final Condition notEmpty;
+
+    ShardedQueue(int shardCount) {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ConcurrentLinkedQueue<Runnable>[] shards = new ConcurrentLinkedQueue[shardCount];
+        this.shards = shards;
+        for (int i = 0; i < shardCount; ++i) {
+            shards[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.size = new LongAdder();
+        this.nextSweep = new AtomicInteger(0);
+        this.waiters = new AtomicInteger(0);
+        this.lock = new ReentrantLock();
+        this.notEmpty = lock.newCondition();
+    }
+
+    @Override
+    public boolean offer(Runnable work) {
+        if (work == null) {
+            throw new NullPointerException();
+        }
+        size.increment();
+        shards[(int) (Thread.currentThread().threadId() % shards.length)].add(work);
+        if (waiters.get() > 0) {
+            lock.lock();
+            try {
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void put(Runnable work) {
+        offer(work);
+    }
+
+    @Override
+    public boolean offer(Runnable work, long timeout, TimeUnit unit) {
+        return offer(work);
+    }
+
+    @Override
+    public Runnable poll() {
+        int first = Math.floorMod(nextSweep.getAndIncrement(), shards.length);
+        for (int i = 0; i < shards.length; ++i) {
+            Runnable work = shards[(first + i) % shards.length].poll();
+            if (work != null) {
+                size.decrement();
+                return work;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        Runnable work = poll();
+        if (work != null) {
+            return work;
+        }
+        lock.lockInterruptibly();
+        waiters.incrementAndGet();
+        try {
+            // Registered as a waiter before sweeping again, so offer() can not miss us
+            while ((work = poll()) == null) {
+                notEmpty.await();
+            }
+            return work;
+        } finally {
+            waiters.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        Runnable work = poll();
+        if (work != null) {
+            return work;
+        }
+        long remaining = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        waiters.incrementAndGet();
+        try {
+            while ((work = poll()) == null) {
+                if (remaining <= 0) {
+                    return null;
+                }
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            return work;
+        } finally {
+            waiters.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        for (ConcurrentLinkedQueue<Runnable> shard : shards) {
+            Runnable work = shard.peek();
+            if (work != null) {
+                return work;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE, size.sum()));
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> target) {
+        return drainTo(target, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> target, int maxElements) {
+        int drained = 0;
+        Runnable work;
+        while (drained < maxElements && (work = poll()) != null) {
+            target.add(work);
+            ++drained;
+        }
+        return drained;
+    }
+
+    @Override
+    public Iterator<Runnable> iterator() {
+        List<Runnable> snapshot = new ArrayList<>();
+        for (ConcurrentLinkedQueue<Runnable> shard : shards) {
+            snapshot.addAll(shard);
+        }
+        return snapshot.iterator();
+    }
+}
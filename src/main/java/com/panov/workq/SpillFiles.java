@@ -0,0 +1,57 @@
+package com.panov.workq;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Segments of an {@link OffHeapQueue} backed by memory-mapped files. Pages are written
+ * back by the operating system as it sees fit, so the backlog costs neither heap nor,
+ * once written out, memory. Each file is deleted as soon as its segment is drained.
+ */
+class SpillFiles implements OffHeapQueue.Segments {
+    private final Path directory;
+    // Buffers compare by content, the files have to be found by identity
+    private final Map<ByteBuffer, Path> files;
+
+    SpillFiles(Path directory) {
+        this.directory = directory;
+        this.files = new IdentityHashMap<>();
+    }
+
+    @Override
+    public ByteBuffer allocate(int bytes) {
+        try {
+            Files.createDirectories(directory);
+            Path file = Files.createTempFile(directory, "workq-", ".spill");
+            ByteBuffer segment;
+            // The mapping outlives the channel
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            }
+            files.put(segment, file);
+            return segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can not spill tasks to " + directory, e);
+        }
+    }
+
+    @Override
+    public void release(ByteBuffer segment) {
+        Path file = files.remove(segment);
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // Some platforms keep mapped files locked, the file is left behind then
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.panov.workq;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Task queue that keeps up to {@code memoryLimit} pieces of work in memory and spills
+ * the rest to an overflow queue, typically one on {@link SpillFiles}.
+ * <p>
+ * Once anything has spilled, new work goes to the overflow as well until it drains,
+ * so the queue stays FIFO: the work in memory is always older than the spilled work,
+ * which is paged back in as the memory runs empty.
+ */
+class SpillingQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+    private final ArrayDeque<Runnable> memory;
+    private final int memoryLimit;
+    private final OffHeapQueue overflow;
+    private final ReentrantLock lock;
+    private final Condition notEmpty;
+
+    SpillingQueue(int memoryLimit, OffHeapQueue overflow) {
+        this.memory = new ArrayDeque<>();
+        this.memoryLimit = memoryLimit;
+        this.overflow = overflow;
+        this.lock = new ReentrantLock();
+        this.notEmpty = lock.newCondition();
+    }
+
+    /**
+     * @throws java.io.UncheckedIOException if the work had to spill and could not
+     */
+    @Override
+    public boolean offer(Runnable work) {
+        lock.lock();
+        try {
+            if (memory.size() < memoryLimit && overflow.isEmpty()) {
+                memory.add(work);
+            } else {
+                overflow.offer(work);
+            }
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Runnable work) {
+        offer(work);
+    }
+
+    @Override
+    public boolean offer(Runnable work, long timeout, TimeUnit unit) {
+        return offer(work);
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            Runnable work;
+            while ((work = dequeue()) == null) {
+                notEmpty.await();
+            }
+            return work;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            Runnable work;
+            while ((work = dequeue()) == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return work;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            Runnable work = memory.peek();
+            return work != null ? work : overflow.peek();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return memory.size() + overflow.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> target) {
+        return drainTo(target, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> target, int maxElements) {
+        lock.lock();
+        try {
+            int drained = 0;
+            Runnable work;
+            while (drained < maxElements && (work = dequeue()) != null) {
+                target.add(work);
+                ++drained;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Iterator<Runnable> iterator() {
+        lock.lock();
+        try {
+            List<Runnable> snapshot = new ArrayList<>(memory);
+            overflow.forEach(snapshot::add);
+            return snapshot.iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the spilled work along with its files.
+     */
+    void release() {
+        lock.lock();
+        try {
+            overflow.release();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Holding the lock
+    private Runnable dequeue() {
+        Runnable work = memory.poll();
+        return work != null ? work : overflow.poll();
+    }
+}
@@ -0,0 +1,109 @@
+package com.panov.workq;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Task queue whose takers keep checking for work, as the {@link WaitStrategy} says, before
+ * they block on the queue underneath. A task that comes in meanwhile is picked up without
+ * a park and unpark, which is what sparse traffic mostly pays for in latency.
+ */
+class SpinningQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+    private final BlockingQueue<Runnable> queue;
+    private final WaitStrategy waitStrategy;
+
+    SpinningQueue(BlockingQueue<Runnable> queue, WaitStrategy waitStrategy) {
+        this.queue = queue;
+        this.waitStrategy = waitStrategy;
+    }
+
+    @Override
+    public boolean offer(Runnable work) {
+        return queue.offer(work);
+    }
+
+    @Override
+    public void put(Runnable work) throws InterruptedException {
+        queue.put(work);
+    }
+
+    @Override
+    public boolean offer(Runnable work, long timeout, TimeUnit unit) throws InterruptedException {
+        return queue.offer(work, timeout, unit);
+    }
+
+    @Override
+    public Runnable poll() {
+        return queue.poll();
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        for (int attempt = 0; ; ++attempt) {
+            Runnable work = queue.poll();
+            if (work != null) {
+                return work;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (!waitStrategy.idle(attempt)) {
+                return queue.take();
+            }
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (int attempt = 0; ; ++attempt) {
+            Runnable work = queue.poll();
+            if (work != null) {
+                return work;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            if (!waitStrategy.idle(attempt)) {
+                return queue.poll(remaining, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        return queue.peek();
+    }
+
+    @Override
+    public int size() {
+        return queue.size();
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return queue.remainingCapacity();
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> target) {
+        return queue.drainTo(target);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> target, int maxElements) {
+        return queue.drainTo(target, maxElements);
+    }
+
+    @Override
+    public Iterator<Runnable> iterator() {
+        return queue.iterator();
+    }
+}
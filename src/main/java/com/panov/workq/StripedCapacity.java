@@ -0,0 +1,107 @@
+package com.panov.workq;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Capacity split into stripes, so that producers on different threads rarely touch the
+ * same counter. A producer sticks to its stripe, which takes permits from the shared pool
+ * a block at a time when it runs dry. Released permits go straight back to the pool, where
+ * any producer finds them, rather than to the stripe of the worker releasing them. Before
+ * turning a producer down, the permits parked in all stripes are pooled again, so the
+ * limit is never exceeded, though a producer racing with others may now and then be
+ * turned down just short of it.
+ */
+class StripedCapacity extends Capacity {
+    // Longs per stripe, so that every stripe has a cache line of its own
+    private static final int STRIDE = 8;
+    private static final int MAX_BLOCK = 64;
+
+    private final int limit;
+    private final int stripeCount;
+    private final int block;
+    // Permits nobody holds, below zero while forced past the limit
+    private final AtomicLong pool;
+    private final AtomicLongArray stripes;
+
+    StripedCapacity(int limit, int stripeCount) {
+        this.limit = limit;
+        this.stripeCount = stripeCount;
+        this.block = (int) Math.max(1, Math.min(MAX_BLOCK, limit / (stripeCount * 8L)));
+        this.pool = new AtomicLong(limit);
+        this.stripes = new AtomicLongArray(stripeCount * STRIDE);
+    }
+
+    @Override
+    boolean tryAcquire(int permits) {
+        int stripe = stripe();
+        while (true) {
+            long held = stripes.get(stripe);
+            if (held < permits) {
+                break;
+            }
+            if (stripes.compareAndSet(stripe, held, held - permits)) {
+                return true;
+            }
+        }
+        if (takeFromPool(permits, stripe)) {
+            return true;
+        }
+        for (int i = 0; i < stripeCount; ++i) {
+            long held = stripes.getAndSet(i * STRIDE, 0);
+            if (held != 0) {
+                pool.addAndGet(held);
+            }
+        }
+        return takeFromPool(permits, stripe);
+    }
+
+    @Override
+    void forceAcquire(int permits) {
+        pool.addAndGet(-permits);
+    }
+
+    @Override
+    void release(int permits) {
+        pool.addAndGet(permits);
+        released();
+    }
+
+    // Approximate while permits move between the pool and the stripes
+    @Override
+    int size() {
+        long free = pool.get();
+        for (int i = 0; i < stripeCount; ++i) {
+            free += stripes.get(i * STRIDE);
+        }
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE, limit - free));
+    }
+
+    /**
+     * Permits in the shared pool, not parked in any stripe.
+     */
+    long pooled() {
+        return pool.get();
+    }
+
+    // Takes a block on top of what is needed right now, so the next few acquires stay in the stripe
+    private boolean takeFromPool(int permits, int stripe) {
+        while (true) {
+            long available = pool.get();
+            if (available < permits) {
+                return false;
+            }
+            long taken = Math.min(available, (long) permits + block);
+            if (pool.compareAndSet(available, available - taken)) {
+                if (taken > permits) {
+                    stripes.addAndGet(stripe, taken - permits);
+                }
+                return true;
+            }
+        }
+    }
+
+    private int stripe() {
+        return (int) (Thread.currentThread().threadId() % stripeCount) * STRIDE;
+    }
+}
@@ -0,0 +1,74 @@
+package com.panov.workq;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams results in submission order. A task may only start once its id is within
+ * {@code window} of the next result to hand out, so the reorder buffer never holds
+ * more than {@code window} results of tasks that ran after the stream was attached.
+ */
+class SubmissionOrderStream<R> extends ResultStream<R> {
+    private final int window;
+    private final Map<Integer, Object> reorderBuffer;
+    private int cursor;
+
+    SubmissionOrderStream(AtomicInteger pendingTasks, int executionTimeout, Owner owner, int window) {
+        super(pendingTasks, executionTimeout, owner);
+        this.window = window;
+        this.reorderBuffer = new HashMap<>();
+    }
+
+    @Override
+    public void awaitTurn(int id) throws InterruptedException {
+        lock.lock();
+        try {
+            while (id - cursor >= window) {
+                slotFreed.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void accept(int id, R result) {
+        put(id, wrap(result));
+    }
+
+    @Override
+    public void reject(int id, TaskResult<R> failure) {
+        put(id, new Failure(failure));
+    }
+
+    @Override
+    void backfill(int id, Object value) {
+        put(id, value);
+    }
+
+    @Override
+    protected Object poll() {
+        Object value;
+        while ((value = reorderBuffer.remove(cursor)) != null) {
+            ++cursor;
+            slotFreed.signalAll();
+            if (!(value instanceof Failure)) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    private void put(int id, Object value) {
+        lock.lock();
+        try {
+            reorderBuffer.put(id, value);
+            if (id == cursor) {
+                available.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.panov.workq;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Turns tasks into bytes and back, for queues that keep their tasks outside the heap,
+ * see {@link WorkQueue.Builder#offHeap(TaskCodec)}. Encodings may be of fixed or variable length.
+ */
+public interface TaskCodec<T> {
+    /**
+     * Bytes {@link #encode(Object, ByteBuffer)} is going to write for the task.
+     */
+    int encodedSize(T task);
+
+    /**
+     * Writes exactly {@link #encodedSize(Object)} bytes at the buffer's position.
+     */
+    void encode(T task, ByteBuffer target);
+
+    /**
+     * Reads a task back, the buffer holds its bytes and nothing else.
+     */
+    T decode(ByteBuffer source);
+
+    static TaskCodec<String> utf8() {
+        return new TaskCodec<>() {
+            @Override
+            public int encodedSize(String task) {
+                return task.getBytes(StandardCharsets.UTF_8).length;
+            }
+
+            @Override
+            public void encode(String task, ByteBuffer target) {
+                target.put(task.getBytes(StandardCharsets.UTF_8));
+            }
+
+            @Override
+            public String decode(ByteBuffer source) {
+                return StandardCharsets.UTF_8.decode(source).toString();
+            }
+        };
+    }
+
+    static TaskCodec<Long> longs() {
+        return new TaskCodec<>() {
+            @Override
+            public int encodedSize(Long task) {
+                return Long.BYTES;
+            }
+
+            @Override
+            public void encode(Long task, ByteBuffer target) {
+                target.putLong(task);
+            }
+
+            @Override
+            public Long decode(ByteBuffer source) {
+                return source.getLong();
+            }
+        };
+    }
+}
@@ -0,0 +1,89 @@
+package com.panov.workq;
+
+import java.util.Objects;
+
+/**
+ * Outcome of a single task: its result when it completed, otherwise the reason it did not.
+ */
+public final class TaskResult<R> {
+    private static final TaskResult<?> TIMED_OUT = new TaskResult<>(TaskStatus.TIMED_OUT, null, null);
+    private static final TaskResult<?> CANCELLED = new TaskResult<>(TaskStatus.CANCELLED, null, null);
+
+    private final TaskStatus status;
+    private final R value;
+    private final Throwable error;
+
+    private TaskResult(TaskStatus status, R value, Throwable error) {
+        this.status = status;
+        this.value = value;
+        this.error = error;
+    }
+
+    public static <R> TaskResult<R> completed(R value) {
+        return new TaskResult<>(TaskStatus.COMPLETED, value, null);
+    }
+
+    public static <R> TaskResult<R> failed(Throwable error) {
+        return new TaskResult<>(TaskStatus.FAILED, null, Objects.requireNonNull(error));
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <R> TaskResult<R> timedOut() {
+        return (TaskResult<R>) TIMED_OUT;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <R> TaskResult<R> cancelled() {
+        return (TaskResult<R>) CANCELLED;
+    }
+
+    public TaskStatus status() {
+        return status;
+    }
+
+    public boolean isCompleted() {
+        return status == TaskStatus.COMPLETED;
+    }
+
+    /**
+     * @throws IllegalStateException if the task did not complete
+     */
+    public R value() {
+        if (!isCompleted()) {
+            throw new IllegalStateException("Task has no result, it is " + status);
+        }
+        return value;
+    }
+
+    /**
+     * What the handler threw, null unless the task {@link TaskStatus#FAILED failed}.
+     */
+    public Throwable error() {
+        return error;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TaskResult<?> other)) {
+            return false;
+        }
+        return status == other.status && Objects.equals(value, other.value) && Objects.equals(error, other.error);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(status, value, error);
+    }
+
+    @Override
+    public String toString() {
+        return switch (status) {
+            case COMPLETED -> "TaskResult[COMPLETED: " + value + "]";
+            case FAILED -> "TaskResult[FAILED: " + error + "]";
+            default -> "TaskResult[" + status + "]";
+        };
+    }
+}
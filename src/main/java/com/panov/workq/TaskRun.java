@@ -0,0 +1,67 @@
+package com.panov.workq;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One run of a handler that a task timeout or a cancelled round may interrupt.
+ * <p>
+ * The interrupt is only ever delivered while the handler is running, and the worker
+ * clears it before moving on, so it can not leak into the next task on that thread.
+ */
+class TaskRun implements Runnable {
+    private static final int RUNNING = 0;
+    private static final int INTERRUPTING = 1;
+    private static final int INTERRUPTED = 2;
+    private static final int FINISHED = 3;
+
+    private final Thread thread;
+    private final AtomicInteger state;
+    private volatile TaskStatus cancelledAs;
+    private Future<?> timeout;
+
+    TaskRun(Thread thread) {
+        this.thread = thread;
+        this.state = new AtomicInteger(RUNNING);
+    }
+
+    /**
+     * Has to be set by the running thread before the handler starts.
+     */
+    void timeout(Future<?> timeout) {
+        this.timeout = timeout;
+    }
+
+    // Fired by the timer
+    @Override
+    public void run() {
+        cancel(TaskStatus.TIMED_OUT);
+    }
+
+    void cancel(TaskStatus status) {
+        if (state.compareAndSet(RUNNING, INTERRUPTING)) {
+            cancelledAs = status;
+            thread.interrupt();
+            state.set(INTERRUPTED);
+        }
+    }
+
+    /**
+     * Called by the running thread once the handler returned or threw.
+     *
+     * @return the status the run was cancelled as, null if it finished first
+     */
+    TaskStatus finish() {
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+        if (state.compareAndSet(RUNNING, FINISHED)) {
+            return null;
+        }
+        while (state.get() != INTERRUPTED) {
+            Thread.onSpinWait();
+        }
+        Thread.interrupted();
+        return cancelledAs;
+    }
+}
@@ -0,0 +1,20 @@
+package com.panov.workq;
+
+/**
+ * How a task of a round ended.
+ */
+public enum TaskStatus {
+    COMPLETED,
+    /**
+     * The handler threw.
+     */
+    FAILED,
+    /**
+     * The handler ran past the {@link WorkQueue.Builder#taskTimeout(long) task timeout} and was interrupted.
+     */
+    TIMED_OUT,
+    /**
+     * The task was interrupted or never ran because its round was abandoned.
+     */
+    CANCELLED
+}
@@ -0,0 +1,142 @@
+package com.panov.workq;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Task queue that hands work out no faster than a token bucket allows.
+ * <p>
+ * The pace is kept where workers take tasks rather than where they are added, so a
+ * backlog can not build up behind busy workers and then leave in a burst. A taker that
+ * finds no token waits in the queue the same way it waits on an empty one, so no
+ * worker ever sits on a task waiting for its turn. Takers queue up on a lock and
+ * only the one holding it watches the bucket.
+ */
+class ThrottledQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+    private final BlockingQueue<Runnable> queue;
+    private final TokenBucket bucket;
+    private final ReentrantLock takeLock;
+    // Never signalled, only lets the waiting taker be interrupted
+    private final Condition tokenDue;
+
+    ThrottledQueue(BlockingQueue<Runnable> queue, TokenBucket bucket) {
+        this.queue = queue;
+        this.bucket = bucket;
+        this.takeLock = new ReentrantLock();
+        this.tokenDue = takeLock.newCondition();
+    }
+
+    @Override
+    public boolean offer(Runnable work) {
+        return queue.offer(work);
+    }
+
+    @Override
+    public void put(Runnable work) throws InterruptedException {
+        queue.put(work);
+    }
+
+    @Override
+    public boolean offer(Runnable work, long timeout, TimeUnit unit) throws InterruptedException {
+        return queue.offer(work, timeout, unit);
+    }
+
+    // Another taker holding the lock has the next token to itself
+    @Override
+    public Runnable poll() {
+        if (!takeLock.tryLock()) {
+            return null;
+        }
+        try {
+            if (bucket.delay(System.nanoTime()) > 0) {
+                return null;
+            }
+            return taken(queue.poll());
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        takeLock.lockInterruptibly();
+        try {
+            long delay;
+            while ((delay = bucket.delay(System.nanoTime())) > 0) {
+                tokenDue.awaitNanos(delay);
+            }
+            // Nobody else takes while we hold the lock, so the token is still there afterwards
+            return taken(queue.take());
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (!takeLock.tryLock(timeout, unit)) {
+            return null;
+        }
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                long delay = bucket.delay(now);
+                long remaining = deadline - now;
+                if (delay == 0) {
+                    return taken(queue.poll(Math.max(0, remaining), TimeUnit.NANOSECONDS));
+                }
+                if (remaining <= 0) {
+                    return null;
+                }
+                tokenDue.awaitNanos(Math.min(delay, remaining));
+            }
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        return queue.peek();
+    }
+
+    @Override
+    public int size() {
+        return queue.size();
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return queue.remainingCapacity();
+    }
+
+    // Drained work is dropped rather than run, it takes no tokens
+    @Override
+    public int drainTo(Collection<? super Runnable> target) {
+        return queue.drainTo(target);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> target, int maxElements) {
+        return queue.drainTo(target, maxElements);
+    }
+
+    @Override
+    public Iterator<Runnable> iterator() {
+        return queue.iterator();
+    }
+
+    // Holding the take lock
+    private Runnable taken(Runnable work) {
+        if (work != null) {
+            bucket.tryAcquire(System.nanoTime());
+        }
+        return work;
+    }
+}
@@ -0,0 +1,35 @@
+package com.panov.workq;
+
+/**
+ * Token bucket kept as the time its next token is due rather than as a token count,
+ * so it never needs refilling: a token is available while that time is no more than
+ * {@code burst - 1} intervals ahead of now. Not thread safe, its owner guards it.
+ */
+class TokenBucket {
+    private final long interval;
+    private final long burstTime;
+    private long nextDue;
+
+    TokenBucket(double tokensPerSecond, int burst) {
+        this.interval = Math.max(1, (long) (1_000_000_000 / tokensPerSecond));
+        this.burstTime = (burst - 1) * interval;
+        // Starts out full
+        this.nextDue = System.nanoTime();
+    }
+
+    /**
+     * Nanoseconds until a token is available, zero if one is already.
+     */
+    long delay(long now) {
+        return Math.max(0, nextDue - burstTime - now);
+    }
+
+    boolean tryAcquire(long now) {
+        if (delay(now) > 0) {
+            return false;
+        }
+        // An idle bucket fills up to the burst and no further
+        nextDue = Math.max(nextDue, now) + interval;
+        return true;
+    }
+}
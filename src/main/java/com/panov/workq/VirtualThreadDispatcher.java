@@ -0,0 +1,92 @@
+package com.panov.workq;
+
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Starts a virtual thread per task. A semaphore caps how many of them run at once,
+ * which takes the place of the pool size.
+ */
+class VirtualThreadDispatcher implements Dispatcher {
+    private final BlockingQueue<Runnable> queue;
+    private final Semaphore permits;
+    private final Set<Thread> running;
+
+    private Thread dispatcher;
+    private volatile boolean shutdown;
+
+    VirtualThreadDispatcher(BlockingQueue<Runnable> queue, int maxConcurrency) {
+        this.queue = queue;
+        this.permits = new Semaphore(maxConcurrency);
+        this.running = ConcurrentHashMap.newKeySet();
+    }
+
+    @Override
+    public synchronized void start() {
+        dispatcher = Thread.ofVirtual().name("workq-dispatcher").start(this::dispatch);
+    }
+
+    @Override
+    public void signal() {
+        // The dispatcher is already blocked on the queue
+    }
+
+    @Override
+    public synchronized void shutdownNow() {
+        shutdown = true;
+        if (dispatcher != null) {
+            dispatcher.interrupt();
+        }
+        running.forEach(Thread::interrupt);
+    }
+
+    @Override
+    public int size() {
+        return running.size();
+    }
+
+    private void dispatch() {
+        while (!shutdown) {
+            try {
+                // Take a permit first, so that no task is held back while waiting for one
+                permits.acquire();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            Runnable task;
+            try {
+                task = queue.take();
+            } catch (InterruptedException e) {
+                permits.release();
+                continue;
+            }
+            synchronized (this) {
+                if (shutdown) {
+                    // The round this dispatcher ran is over, so the task belongs to the next one:
+                    // hand it back for that round's dispatcher rather than run it here
+                    queue.add(task);
+                    permits.release();
+                    return;
+                }
+                // Registered before it starts, so shutdownNow() never misses a running task
+                Thread thread = Thread.ofVirtual().unstarted(() -> runTask(task));
+                running.add(thread);
+                thread.start();
+            }
+        }
+    }
+
+    private void runTask(Runnable task) {
+        Thread current = Thread.currentThread();
+        try {
+            task.run();
+        } catch (RuntimeException | Error e) {
+            current.getUncaughtExceptionHandler().uncaughtException(current, e);
+        } finally {
+            running.remove(current);
+            permits.release();
+        }
+    }
+}
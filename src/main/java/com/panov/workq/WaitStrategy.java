@@ -0,0 +1,72 @@
+package com.panov.workq;
+
+/**
+ * How an idle worker waits for the next task, see {@link WorkQueue.Builder#waitStrategy(WaitStrategy)}.
+ * <p>
+ * A worker that blocks is parked until a producer wakes it up, which costs the producer a
+ * signal and the task tens of microseconds before a worker picks it up. Spinning or
+ * yielding first keeps the worker close to the CPU, so a task arriving meanwhile is picked
+ * up within nanoseconds, at the price of the CPU burnt while there is none.
+ */
+public final class WaitStrategy {
+    private static final int SPINS = 100;
+    private static final int YIELDS = 100;
+
+    /**
+     * Blocks right away, costs no CPU while idle. The default.
+     */
+    public static final WaitStrategy BLOCKING = new WaitStrategy(0, 0);
+    /**
+     * Spins without ever giving the CPU up, so a task is picked up within nanoseconds of
+     * being added. Every idle worker keeps a core busy, only for workers pinned to cores
+     * of their own.
+     */
+    public static final WaitStrategy BUSY_SPIN = new WaitStrategy(Integer.MAX_VALUE, 0);
+    /**
+     * Spins for a while, then yields the CPU between checks. Nearly as quick as spinning
+     * while leaving room to other threads, but still shows as a busy core.
+     */
+    public static final WaitStrategy YIELDING = new WaitStrategy(SPINS, Integer.MAX_VALUE);
+    /**
+     * Spins and yields for a while, then blocks. Quick for traffic that comes in bursts,
+     * idle once it stops.
+     */
+    public static final WaitStrategy PARKING = new WaitStrategy(SPINS, YIELDS);
+
+    private final int spins;
+    private final int yields;
+
+    private WaitStrategy(int spins, int yields) {
+        this.spins = spins;
+        this.yields = yields;
+    }
+
+    /**
+     * Checks for a task {@code spins} times in a row before blocking. A spin is a few dozen
+     * nanoseconds, so a count in the thousands covers the gap between tasks of a steady stream.
+     */
+    public static WaitStrategy spinThenPark(int spins) {
+        if (spins < 0) {
+            throw new IllegalArgumentException("Spin count can not be negative");
+        }
+        return new WaitStrategy(spins, 0);
+    }
+
+    /**
+     * Waits a little before the queue is checked again, {@code attempt} counts the checks
+     * that came up empty so far.
+     *
+     * @return false once the worker should block instead
+     */
+    boolean idle(int attempt) {
+        if (attempt < spins) {
+            Thread.onSpinWait();
+            return true;
+        }
+        if (attempt - spins < yields) {
+            Thread.yield();
+            return true;
+        }
+        return false;
+    }
+}
@@ -1,19 +1,88 @@
 package com.panov.workq;
 
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.ToLongBiFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+public class WorkQueue<T, R> implements AutoCloseable {
+    /**
+     * Lane that tasks added without naming one go to, see {@link Builder#lane(String, int, int)}.
+     */
+    public static final String DEFAULT_LANE = "default";
+
+    private static final int MAX_CHUNK_SIZE = 256;
+    private static final int CHUNKS_PER_WORKER = 4;
+    private static final long BOOST_LIMIT = Long.MAX_VALUE >> 2;
+    // Round sequence, id and time added in front of every task kept off the heap
+    private static final int ENCODED_HEADER = Long.BYTES + Integer.BYTES + Long.BYTES;
+    // How long, in milliseconds, journaled outcomes may stay buffered when nothing else writes them out
+    private static final long OUTCOME_WRITE_DELAY = 10;
 
-public class WorkQueue<T, R> {
     private final BlockingQueue<Runnable> taskQueue;
+    // The task queue itself or the one it paces, null unless lanes were configured
+    private final LaneQueue laneQueue;
+    // The task queue itself or the one it paces, null unless tasks spill to disk
+    private final SpillingQueue spillQueue;
     private final BiFunction<T, WorkQueue<T, R>, R> handler;
-    private final int maxQueueSize;
+    // Null unless tasks are handled in batches
+    private final Function<List<T>, List<R>> batchHandler;
+    private final int maxBatchSize;
+    private final long maxLinger;
+    // Null unless queued tasks are kept off the heap
+    private final TaskCodec<T> taskCodec;
+    private final Capacity capacity;
+    private final int minWorkers;
     private final int maxWorkers;
+    private final long keepAliveTime;
     private final int executionTimeout;
-    private final List<Pair<R>> resultsRaw;
+    private final long taskTimeout;
+    private final boolean persistent;
+    private final ExecutionMode executionMode;
+    private final boolean prioritized;
+    private final long priorityAging;
+    // Lane name to index in the lane queue, empty unless lanes were configured
+    private final Map<String, Integer> lanes;
+    private final WorkQueueMetrics metrics;
+    private final boolean recordMetrics;
+    // Runs are tracked when something other than shutting the pool down may cancel them
+    private final boolean trackRuns;
+    // Every task then takes a token on its own, so batches are not chunked
+    private final boolean rateLimited;
+    // Tasks are then added without taking the monitor, see admit()
+    private final boolean sharded;
+    // Results by task, null unless memoizing
+    private final MemoCache<T, R> cache;
+    private final RetryPolicy retryPolicy;
+    // Null unless the round is journaled
+    private final Journal journal;
+    private final TaskCodec<T> journalCodec;
+    private final TaskCodec<R> resultCodec;
+    // Adding a task waits for its sync unless the journal is synced in the background
+    private final boolean syncOnAdd;
+    // Outcomes are buffered and a write-out of them is due on the timer
+    private final AtomicBoolean outcomesBuffered = new AtomicBoolean();
 
-    private final AtomicInteger totalTasks;
+    private volatile Round<R> currentRound;
+    // Held in a reference the workers gauge can read without the queue itself
+    private final AtomicReference<Dispatcher> dispatcher = new AtomicReference<>();
+    private volatile ScheduledExecutorService timer;
+    // Breaks ties between equally ranked tasks, guarded by the monitor
+    private long enqueueSequence;
+    // The batch tasks are being gathered into, guarded by the monitor
+    private Batch openBatch;
+    private volatile boolean closed;
 
     public WorkQueue(
             BiFunction<T, WorkQueue<T, R>, R> handler,
@@ -21,77 +90,2131 @@ public class WorkQueue<T, R> {
             int maxWorkers,
             int executionTimeout
     ) {
-        this.taskQueue = new LinkedBlockingQueue<>();
-        this.handler = handler;
-        this.maxQueueSize = maxQueueSize;
-        this.maxWorkers = maxWorkers;
-        this.executionTimeout = executionTimeout;
-        totalTasks = new AtomicInteger(0);
-        resultsRaw = new ArrayList<>();
+        this(new Builder<>(handler)
+                .maxQueueSize(maxQueueSize)
+                .maxWorkers(maxWorkers)
+                .executionTimeout(executionTimeout)
+        );
     }
 
-    public synchronized void add(T task) {
-        if (taskQueue.size() == maxQueueSize) {
-            throw new IllegalStateException("Tasks queue limit is reached");
+    private WorkQueue(Builder<T, R> builder) {
+        if (builder.minWorkers < 0 || builder.maxWorkers < 1 || builder.minWorkers > builder.maxWorkers) {
+            throw new IllegalArgumentException("Workers range is invalid");
+        }
+        if (builder.keepAliveTime < 0) {
+            throw new IllegalArgumentException("Keep alive time can not be negative");
+        }
+        if (builder.prioritized && builder.executionMode == ExecutionMode.WORK_STEALING) {
+            throw new IllegalArgumentException("Priorities are not supported with work stealing");
+        }
+        if (!builder.lanes.isEmpty() && (builder.prioritized || builder.executionMode == ExecutionMode.WORK_STEALING)) {
+            throw new IllegalArgumentException("Lanes are not supported with priorities or work stealing");
+        }
+        if (builder.priorityAging < 0) {
+            throw new IllegalArgumentException("Priority aging can not be negative");
+        }
+        if (builder.taskTimeout < 0) {
+            throw new IllegalArgumentException("Task timeout can not be negative");
+        }
+        if (builder.batchHandler == null && builder.maxBatchSize > 0) {
+            throw new IllegalArgumentException("Batching needs a batch handler");
+        }
+        if (builder.batchHandler != null && (builder.maxBatchSize < 1 || builder.maxLinger < 0)) {
+            throw new IllegalArgumentException("Batch limits are invalid");
+        }
+        if (builder.batchHandler != null && (builder.prioritized || !builder.lanes.isEmpty() || builder.cacheWeight > 0)) {
+            throw new IllegalArgumentException("Batching is not supported with priorities, lanes or memoizing");
+        }
+        if (builder.taskCodec != null
+                && (builder.prioritized || !builder.lanes.isEmpty() || builder.batchHandler != null)) {
+            throw new IllegalArgumentException("Off-heap and spilled storage are not supported with priorities, lanes or batching");
+        }
+        if (builder.waitStrategy != WaitStrategy.BLOCKING && builder.executionMode == ExecutionMode.WORK_STEALING) {
+            throw new IllegalArgumentException("Wait strategies are not supported with work stealing");
+        }
+        if (builder.ringSize > 0 && (builder.prioritized || !builder.lanes.isEmpty() || builder.taskCodec != null
+                || builder.executionMode == ExecutionMode.WORK_STEALING)) {
+            throw new IllegalArgumentException(
+                    "Ring buffer is not supported with priorities, lanes, off-heap storage or work stealing");
+        }
+        if (builder.shards < 0) {
+            throw new IllegalArgumentException("Shard count can not be negative");
         }
-        int id = totalTasks.getAndIncrement();
-        taskQueue.add(() ->
-            addResultToList(handler.apply(task, this), id)
+        if (builder.shards > 0 && (builder.prioritized || !builder.lanes.isEmpty() || builder.batchHandler != null
+                || builder.taskCodec != null || builder.ringSize > 0)) {
+            throw new IllegalArgumentException(
+                    "Sharding is not supported with priorities, lanes, batching, off-heap storage or a ring buffer");
+        }
+        if (builder.memoryLimit < 0) {
+            throw new IllegalArgumentException("Memory limit can not be negative");
+        }
+        if (builder.segmentSize < ENCODED_HEADER) {
+            throw new IllegalArgumentException("Segment size is too small");
+        }
+        if (builder.cacheWeight < 0 || builder.cacheTimeToLive < 0) {
+            throw new IllegalArgumentException("Cache limits can not be negative");
+        }
+        if (builder.journalCompaction < 1 || builder.journalSyncInterval < 0) {
+            throw new IllegalArgumentException("Journal settings are invalid");
+        }
+        this.rateLimited = builder.rateLimit > 0 || !builder.laneRateLimits.isEmpty();
+        if (rateLimited && builder.executionMode == ExecutionMode.WORK_STEALING) {
+            throw new IllegalArgumentException("Rate limits are not supported with work stealing");
+        }
+        this.lanes = laneIndex(builder.lanes);
+        this.laneQueue = lanes.isEmpty() ? null : createLaneQueue(builder.lanes, builder.laneRateLimits, lanes);
+        if (laneQueue == null && !builder.laneRateLimits.isEmpty()) {
+            throw new IllegalArgumentException("Unknown lane: " + builder.laneRateLimits.keySet().iterator().next());
+        }
+        this.spillQueue = builder.spillDirectory == null ? null : new SpillingQueue(builder.memoryLimit,
+                new OffHeapQueue(new TaskEncoding(), builder.segmentSize, new SpillFiles(builder.spillDirectory)));
+        BlockingQueue<Runnable> queue;
+        if (laneQueue != null) {
+            queue = laneQueue;
+        } else if (spillQueue != null) {
+            queue = spillQueue;
+        } else if (builder.taskCodec != null) {
+            queue = new OffHeapQueue(new TaskEncoding(), builder.segmentSize);
+        } else if (builder.prioritized) {
+            queue = new PriorityBlockingQueue<>(64, WorkQueue::compareRanks);
+        } else if (builder.ringSize > 0) {
+            queue = new RingBufferQueue(builder.ringSize, builder.waitStrategy);
+        } else if (builder.shards > 0) {
+            queue = new ShardedQueue(builder.shards);
+        } else {
+            queue = new LinkedBlockingQueue<>();
+        }
+        if (builder.rateLimit > 0) {
+            queue = new ThrottledQueue(queue, new TokenBucket(builder.rateLimit, builder.rateBurst));
+        }
+        // The ring follows the strategy itself before its takers block
+        if (builder.waitStrategy != WaitStrategy.BLOCKING && !(queue instanceof RingBufferQueue)) {
+            queue = new SpinningQueue(queue, builder.waitStrategy);
+        }
+        this.taskQueue = queue;
+        this.batchHandler = builder.batchHandler;
+        this.handler = batchHandler == null ? Objects.requireNonNull(builder.handler) : this::handleAlone;
+        this.maxBatchSize = builder.maxBatchSize;
+        this.maxLinger = builder.maxLinger;
+        this.taskCodec = builder.taskCodec;
+        this.sharded = builder.shards > 0;
+        this.capacity = sharded
+                ? new StripedCapacity(builder.maxQueueSize, builder.shards)
+                : new CountedCapacity(builder.maxQueueSize);
+        this.minWorkers = builder.minWorkers;
+        this.maxWorkers = builder.maxWorkers;
+        this.keepAliveTime = builder.keepAliveTime;
+        this.executionTimeout = builder.executionTimeout;
+        this.taskTimeout = builder.taskTimeout;
+        this.persistent = builder.persistent;
+        this.executionMode = Objects.requireNonNull(builder.executionMode);
+        this.prioritized = builder.prioritized;
+        this.priorityAging = TimeUnit.MILLISECONDS.toNanos(builder.priorityAging);
+        // Reads the reference rather than the queue, which is not fully built yet
+        AtomicReference<Dispatcher> current = this.dispatcher;
+        this.metrics = new WorkQueueMetrics(capacity::size, () -> sizeOf(current.get()), builder.listener);
+        this.recordMetrics = builder.metrics;
+        this.trackRuns = persistent || taskTimeout > 0;
+        this.cache = builder.cacheWeight == 0 ? null : new MemoCache<>(
+                builder.cacheWeight,
+                TimeUnit.MILLISECONDS.toNanos(builder.cacheTimeToLive),
+                builder.cacheWeigher
         );
+        this.retryPolicy = builder.retryPolicy;
+        this.journalCodec = builder.journalCodec;
+        this.resultCodec = builder.resultCodec;
+        this.journal = builder.journalFile == null ? null : new Journal(builder.journalFile, builder.journalCompaction);
+        currentRound = new Round<>();
+        this.syncOnAdd = builder.journalSyncInterval == 0;
+        if (journal != null) {
+            recover(currentRound);
+            if (!syncOnAdd) {
+                timer().scheduleWithFixedDelay(journal::flush,
+                        builder.journalSyncInterval, builder.journalSyncInterval, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (persistent) {
+            Dispatcher dispatcher = createDispatcher();
+            this.dispatcher.set(dispatcher);
+            dispatcher.start();
+        }
+    }
+
+    public static <T, R> Builder<T, R> builder(BiFunction<T, WorkQueue<T, R>, R> handler) {
+        return new Builder<>(handler);
     }
 
-    public synchronized void addAll(Collection<T> tasks) {
-        if (taskQueue.size() + tasks.size() > maxQueueSize) {
+    /**
+     * Builds a queue that hands tasks to the handler in batches, for handlers that are much
+     * cheaper per task on a batch, see {@link Builder#batching(int, long)}. The handler has
+     * to return a result for every task of the batch, in the same order. Results still come
+     * out per task and in submission order, and a batch that fails fails each of its tasks.
+     */
+    public static <T, R> Builder<T, R> batchBuilder(Function<List<T>, List<R>> batchHandler) {
+        Builder<T, R> builder = new Builder<>(Objects.requireNonNull(batchHandler));
+        return builder.batching(64, 5);
+    }
+
+    public void add(T task) {
+        if (!tryAdd(task)) {
             throw new IllegalStateException("Tasks queue limit is reached");
         }
-        tasks.forEach(t -> {
-                int id = totalTasks.getAndIncrement();
-                taskQueue.add(() ->
-                    addResultToList(handler.apply(t, this), id)
-                );
-            }
-        );
     }
 
+    /**
+     * Adds the task with the given priority, higher priorities are picked up first. A task
+     * also moves up as it waits, see {@link Builder#priorityAging(long)}, so a steady stream
+     * of urgent tasks can not starve the rest. Results keep their submission order.
+     *
+     * @throws IllegalStateException if the queue was not built {@link Builder#prioritized(boolean) prioritized}
+     */
+    public void add(T task, int priority) {
+        if (!prioritized) {
+            throw new IllegalStateException("Priorities are not enabled for this queue");
+        }
+        ensureOpen();
+        reserve(0, 1);
+        enqueue(task, null, priority, 0);
+    }
+
+    /**
+     * Adds the task to the given lane, see {@link Builder#lane(String, int, int)}.
+     *
+     * @throws IllegalArgumentException if there is no such lane
+     * @throws IllegalStateException    if the queue or the lane is full
+     */
+    public void add(String lane, T task) {
+        int index = laneOf(lane);
+        ensureOpen();
+        reserve(index, 1);
+        enqueue(task, null, 0, index);
+    }
+
+    /**
+     * Adds the tasks to the given lane as one batch, see {@link #addAll(Collection)}.
+     *
+     * @throws IllegalArgumentException if there is no such lane
+     * @throws IllegalStateException    if the queue or the lane has no room for all of them
+     */
+    public void addAll(String lane, Collection<T> tasks) {
+        int index = laneOf(lane);
+        ensureOpen();
+        Object[] batch = tasks.toArray();
+        reserve(index, batch.length);
+        enqueueAll(batch, index);
+    }
+
+    /**
+     * Adds the tasks as one batch: they get consecutive ids and are handed to the
+     * workers in chunks rather than one by one.
+     */
+    public void addAll(Collection<T> tasks) {
+        ensureOpen();
+        Object[] batch = tasks.toArray();
+        reserve(0, batch.length);
+        enqueueAll(batch, 0);
+    }
+
+    /**
+     * Adds the task if the queue has room for it right away, and on a queue with lanes,
+     * the {@link #DEFAULT_LANE default lane} as well.
+     *
+     * @return false if the queue or the default lane is full
+     */
+    public boolean tryAdd(T task) {
+        ensureOpen();
+        if (!tryReserve(0, 1)) {
+            return false;
+        }
+        enqueue(task, null, 0, 0);
+        return true;
+    }
+
+    /**
+     * Adds the task, waiting for room if the queue is full. Room frees up as workers
+     * pick tasks up, so producers are throttled to the pace of the workers. On a queue
+     * with lanes it waits for room in the {@link #DEFAULT_LANE default lane} as well.
+     *
+     * @throws IllegalStateException if the queue gets closed while waiting
+     */
+    public void put(T task) throws InterruptedException {
+        ensureOpen();
+        capacity.acquire(1, -1, TimeUnit.NANOSECONDS);
+        acquireLane(0, -1, TimeUnit.NANOSECONDS);
+        enqueue(task, null, 0, 0);
+    }
+
+    /**
+     * Adds the task, waiting up to the given time for room if the queue is full, or on a
+     * queue with lanes, if the {@link #DEFAULT_LANE default lane} is.
+     *
+     * @return false if there was still no room when the time ran out
+     * @throws IllegalStateException if the queue gets closed while waiting
+     */
+    public boolean offer(T task, long timeout, TimeUnit unit) throws InterruptedException {
+        ensureOpen();
+        long deadline = System.nanoTime() + unit.toNanos(Math.max(0, timeout));
+        if (!capacity.acquire(1, Math.max(0, timeout), unit)
+                || !acquireLane(0, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+            return false;
+        }
+        enqueue(task, null, 0, 0);
+        return true;
+    }
+
+    /**
+     * Adds the task and returns a future of its result. The future completes when the task
+     * has run, which for a queue that is not {@link Builder#persistent(boolean) persistent}
+     * happens during the next {@link #execute()} or {@link #executeAsync()}. The result
+     * still shows up among the round's results as well.
+     * <p>
+     * The future fails with whatever the handler threw, with a {@link TimeoutException} if
+     * the task timed out, and is cancelled along with the task. Cancelling the future
+     * before the task has started skips the task.
+     */
+    public CompletableFuture<R> submit(T task) {
+        ensureOpen();
+        reserve(0, 1);
+        CompletableFuture<R> future = new CompletableFuture<>();
+        enqueue(task, future, 0, 0);
+        return future;
+    }
+
+    /**
+     * Waits until every task of the current round, including the ones handlers add
+     * along the way, has finished and returns their results in submission order.
+     * <p>
+     * A regular queue spins up its workers for the duration of this call only. A
+     * {@link Builder#persistent(boolean) persistent} queue runs tasks as soon as they
+     * are added and keeps its workers between calls. Either way the next round starts
+     * with an empty result list.
+     */
     public List<R> execute() throws InterruptedException {
-        ThreadPoolExecutor pool = new ThreadPoolExecutor(
-                Math.min(3, maxWorkers),
-                maxWorkers,
-                0,
-                TimeUnit.MILLISECONDS,
-                taskQueue
-        );
+        ensureOpen();
+        Dispatcher dispatcher = acquireDispatcher();
 
-        pool.prestartAllCoreThreads();
-        pool.shutdown();
-        boolean terminated = pool.awaitTermination(executionTimeout, TimeUnit.MILLISECONDS);
+        List<R> results;
+        try {
+            results = awaitCompletion();
+        } finally {
+            releaseDispatcher(dispatcher);
+        }
 
-        if (!terminated) {
+        if (results == null) {
             throw new IllegalStateException("Process has been executing too long");
         }
 
-        return resultsRaw
-                .stream()
-                .sorted(Comparator.comparing(Pair::getId))
-                .map(rr -> rr.element)
-                .toList();
+        return results;
+    }
+
+    /**
+     * Non-blocking counterpart of {@link #execute()}: the returned future completes with the
+     * round's results once its last task has finished, on the thread that finished it, so
+     * no thread waits for the round. It fails with an {@link IllegalStateException} when the
+     * execution timeout runs out or the queue is closed, and cancelling it abandons the round.
+     */
+    public CompletableFuture<List<R>> executeAsync() {
+        ensureOpen();
+        CompletableFuture<List<R>> future = new CompletableFuture<>();
+        Round<R> round;
+        synchronized (this) {
+            round = unstreamedRound();
+            if (round.completion != null) {
+                throw new IllegalStateException("This round is already being executed");
+            }
+            round.completion = future;
+        }
+        Dispatcher dispatcher = acquireDispatcher();
+        Future<?> timeout = executionTimeout == Integer.MAX_VALUE ? null : timer().schedule(
+                () -> future.completeExceptionally(new IllegalStateException("Process has been executing too long")),
+                executionTimeout, TimeUnit.MILLISECONDS);
+        // Callers only see the round done once the workers are released, so that
+        // the next round can not have its tasks picked up by a pool on its way out
+        CompletableFuture<List<R>> released = future.whenComplete((results, e) -> {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            if (e != null) {
+                abandonRound(round);
+            }
+            releaseDispatcher(dispatcher);
+        });
+        released.whenComplete((results, e) -> {
+            if (released.isCancelled()) {
+                future.cancel(false);
+            }
+        });
+        completeAsync(round);
+        return released;
+    }
+
+    /**
+     * Like {@link #execute()}, but never throws away finished work: when the execution
+     * timeout runs out, the tasks still running are interrupted, the queued ones are
+     * dropped, and the outcome of every task of the round is returned in submission order.
+     * Tasks cut short this way are {@link TaskStatus#CANCELLED}.
+     */
+    public List<TaskResult<R>> executePartial() throws InterruptedException {
+        ensureOpen();
+        Dispatcher dispatcher = acquireDispatcher();
+        try {
+            return awaitOutcomes();
+        } finally {
+            releaseDispatcher(dispatcher);
+        }
+    }
+
+    /**
+     * Streaming counterpart of {@link #execute()}: results of the current round are handed
+     * out while it is still running and are not kept once consumed.
+     * <p>
+     * With {@link ResultOrder#COMPLETION} at most {@code bufferSize} tasks are running or
+     * waiting to be consumed at a time. With {@link ResultOrder#SUBMISSION} a task only
+     * starts once it is less than {@code bufferSize} tasks ahead of the next result due, so
+     * the reorder buffer stays within the out-of-order window instead of the batch size.
+     * Batches from {@link #addAll(Collection)} are then handed out task by task rather
+     * than in chunks, so the window still spreads over the workers.
+     * Tasks that fail without a result are skipped. Submission order relies on tasks
+     * starting in the order they were added, so it is not available with
+     * {@link ExecutionMode#WORK_STEALING}, priorities, lanes or retries. Queues that
+     * handle tasks in batches can not stream at all, a batch would not fit the window.
+     * <p>
+     * The stream ends with the round. Close it when it is not consumed to the end, the
+     * unfinished round is then abandoned the same way a timed out {@code execute()} is.
+     */
+    public Stream<R> executeStream(ResultOrder order, int bufferSize) {
+        ensureOpen();
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be positive");
+        }
+        if (batchHandler != null) {
+            throw new IllegalStateException("Streaming is not supported with batching");
+        }
+        if (order == ResultOrder.SUBMISSION && executionMode == ExecutionMode.WORK_STEALING) {
+            // The window holds back tasks that run ahead, which only terminates with FIFO dispatch
+            throw new IllegalStateException("Submission order streaming is not supported with work stealing");
+        }
+        if (order == ResultOrder.SUBMISSION && (prioritized || !lanes.isEmpty() || retryPolicy != null || sharded)) {
+            throw new IllegalStateException(
+                    "Submission order streaming is not supported with priorities, lanes, retries or sharding");
+        }
+        ResultStream<R> stream;
+        StreamOwner owner;
+        synchronized (this) {
+            Round<R> round = currentRound;
+            if (round.sink != round.results) {
+                throw new IllegalStateException("Results of this round are already being streamed");
+            }
+            owner = new StreamOwner(round);
+            stream = switch (order) {
+                case COMPLETION -> new CompletionOrderStream<>(round.pendingTasks, executionTimeout, owner, bufferSize);
+                case SUBMISSION -> new SubmissionOrderStream<>(round.pendingTasks, executionTimeout, owner, bufferSize);
+            };
+            round.attach(stream);
+            if (order == ResultOrder.SUBMISSION) {
+                unchunkQueuedTasks();
+            }
+        }
+        owner.dispatcher = acquireDispatcher();
+        int characteristics = order == ResultOrder.SUBMISSION ? Spliterator.ORDERED : 0;
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(stream, characteristics), false)
+                .onClose(stream::close);
+    }
+
+    /**
+     * Stops accepting tasks and shuts the workers down. Tasks that are still queued
+     * are discarded and running handlers are interrupted. Handlers that ignore the
+     * interrupt keep their thread until they return.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        discardQueuedTasks();
+        if (spillQueue != null) {
+            spillQueue.release();
+        }
+        dropRetries(currentRound);
+        capacity.close();
+        if (laneQueue != null) {
+            laneQueue.close();
+        }
+        Dispatcher dispatcher = this.dispatcher.get();
+        if (dispatcher != null) {
+            dispatcher.shutdownNow();
+        }
+        ScheduledExecutorService timer = this.timer;
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        if (journal != null) {
+            journal.close();
+        }
+        CompletableFuture<List<R>> completion = currentRound.completion;
+        if (completion != null) {
+            completion.completeExceptionally(new IllegalStateException("WorkQueue is closed"));
+        }
+        notifyAll();
+    }
+
+    public WorkQueueMetrics metrics() {
+        return metrics;
+    }
+
+    long stealCount() {
+        return dispatcher.get() instanceof WorkStealingDispatcher workStealing ? workStealing.stealCount() : 0;
+    }
+
+    int workerCount() {
+        return sizeOf(dispatcher.get());
+    }
+
+    private static int sizeOf(Dispatcher dispatcher) {
+        return dispatcher == null ? 0 : dispatcher.size();
+    }
+
+    private Dispatcher acquireDispatcher() {
+        if (persistent) {
+            return dispatcher.get();
+        }
+        // Published before starting, so handlers adding tasks right away can signal it
+        Dispatcher dispatcher = createDispatcher();
+        this.dispatcher.set(dispatcher);
+        dispatcher.start();
+        return dispatcher;
+    }
+
+    private void releaseDispatcher(Dispatcher dispatcher) {
+        if (!persistent && dispatcher != null) {
+            // A later round may already have started a dispatcher of its own
+            this.dispatcher.compareAndSet(dispatcher, null);
+            dispatcher.shutdownNow();
+        }
+    }
+
+    private Dispatcher createDispatcher() {
+        return switch (executionMode) {
+            case PLATFORM_THREADS -> new WorkerPool(taskQueue, minWorkers, maxWorkers, keepAliveTime);
+            case VIRTUAL_THREADS -> new VirtualThreadDispatcher(taskQueue, maxWorkers);
+            case WORK_STEALING -> new WorkStealingDispatcher(taskQueue, maxWorkers);
+        };
+    }
+
+    private ScheduledExecutorService timer() {
+        ScheduledExecutorService timer = this.timer;
+        if (timer == null) {
+            synchronized (this) {
+                timer = this.timer;
+                if (timer == null) {
+                    timer = createTimer();
+                    this.timer = timer;
+                }
+            }
+        }
+        return timer;
+    }
+
+    private static ScheduledExecutorService createTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "workq-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Most timeouts get cancelled, they should not pile up in the timer's queue
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("WorkQueue is closed");
+        }
+    }
+
+    private void enqueue(T task, CompletableFuture<R> future, int priority, int lane) {
+        if (this.dispatcher.get() instanceof WorkStealingDispatcher workStealing
+                && workStealing.acceptsLocalTasks() && batchHandler == null && journal == null) {
+            enqueueLocal(workStealing, List.of(task), future);
+        } else if (journal == null) {
+            if (sharded) {
+                enqueueUnlocked(task, null, future);
+            } else {
+                enqueueShared(task, null, future, priority, lane);
+            }
+        } else {
+            byte[] encoded = encodeTasks(new Object[]{task}, lane)[0];
+            awaitJournal(sharded
+                    ? enqueueUnlocked(task, encoded, future)
+                    : enqueueShared(task, encoded, future, priority, lane));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void enqueueAll(Object[] batch, int lane) {
+        if (this.dispatcher.get() instanceof WorkStealingDispatcher workStealing
+                && workStealing.acceptsLocalTasks() && batchHandler == null && journal == null) {
+            enqueueLocal(workStealing, (List<T>) Arrays.asList(batch), null);
+        } else if (journal == null) {
+            if (sharded) {
+                enqueueUnlockedAll(batch, null);
+            } else {
+                enqueueSharedAll(batch, null, lane);
+            }
+        } else {
+            byte[][] encoded = encodeTasks(batch, lane);
+            awaitJournal(sharded ? enqueueUnlockedAll(batch, encoded) : enqueueSharedAll(batch, encoded, lane));
+        }
+    }
+
+    private void awaitJournal(long ticket) {
+        if (syncOnAdd) {
+            journal.awaitDurable(ticket);
+        } else {
+            journal.flushFull();
+        }
+    }
+
+    // Encoded ahead of taking the monitor, so a task the codec chokes on is turned down before it has an id
+    @SuppressWarnings("unchecked")
+    private byte[][] encodeTasks(Object[] tasks, int lane) {
+        byte[][] encoded = new byte[tasks.length][];
+        try {
+            for (int i = 0; i < tasks.length; ++i) {
+                encoded[i] = Journal.encode((T) tasks[i], journalCodec);
+            }
+        } catch (RuntimeException | Error e) {
+            releaseRoom(lane, tasks.length);
+            throw e;
+        }
+        return encoded;
+    }
+
+    /**
+     * @return the journal ticket of the task, 0 unless journaled
+     */
+    private synchronized long enqueueShared(T task, byte[] encoded, CompletableFuture<R> future, int priority, int lane) {
+        if (closed) {
+            releaseRoom(lane, 1);
+            ensureOpen();
+        }
+        Round<R> round = currentRound;
+        int id = round.nextId();
+        round.pendingTasks.incrementAndGet();
+        long ticket = journal == null ? 0 : journal.append(round.sequence, Journal.SUBMITTED, id, encoded);
+        long addedAt = tasksAdded(1);
+        Task work = new Task(round, task, id, addedAt, future);
+        if (batchHandler != null) {
+            gather(work);
+        } else {
+            addTask(placed(work, priority, lane));
+        }
+        signalWorkers();
+        return ticket;
+    }
+
+    /**
+     * @return the journal ticket of the last task, 0 unless journaled
+     */
+    private synchronized long enqueueSharedAll(Object[] batch, byte[][] encoded, int lane) {
+        if (closed) {
+            releaseRoom(lane, batch.length);
+            ensureOpen();
+        }
+        if (batch.length == 0) {
+            return 0;
+        }
+        Round<R> round = currentRound;
+        int firstId = round.reserveIds(batch.length);
+        long ticket = 0;
+        for (int i = 0; encoded != null && i < batch.length; ++i) {
+            ticket = journal.append(round.sequence, Journal.SUBMITTED, firstId + i, encoded[i]);
+        }
+        long addedAt = tasksAdded(batch.length);
+        // Chunks would keep the whole batch array on the heap, so tasks go one by one
+        if (batchHandler != null || taskCodec != null) {
+            for (int i = 0; i < batch.length; ++i) {
+                @SuppressWarnings("unchecked")
+                Task task = new Task(round, (T) batch[i], firstId + i, addedAt, null);
+                if (batchHandler != null) {
+                    gather(task);
+                    continue;
+                }
+                try {
+                    addTask(task);
+                } catch (RuntimeException | Error e) {
+                    // The rest of the batch would not make it either
+                    for (int rest = i + 1; rest < batch.length; ++rest) {
+                        capacity.release(1);
+                        finishTask(round, firstId + rest, null, false, null, TaskResult.failed(e));
+                    }
+                    throw e;
+                }
+            }
+            signalWorkers();
+            return ticket;
+        }
+        int chunkSize = chunkSize(batch.length);
+        for (int from = 0; from < batch.length; from += chunkSize) {
+            taskQueue.add(placed(new Chunk(round, batch, from, Math.min(batch.length, from + chunkSize), firstId, addedAt), 0, lane));
+        }
+        signalWorkers();
+        return ticket;
+    }
+
+    /**
+     * The counterpart of {@link #enqueueShared} for sharded queues, which does without the
+     * monitor: the task joins whichever round {@link #admit(int)} lets it into.
+     *
+     * @return the journal ticket of the task, 0 unless journaled
+     */
+    private long enqueueUnlocked(T task, byte[] encoded, CompletableFuture<R> future) {
+        if (closed) {
+            capacity.release(1);
+            ensureOpen();
+        }
+        Round<R> round = admit(1);
+        int id = round.nextId();
+        long ticket = journal == null ? 0 : journal.append(round.sequence, Journal.SUBMITTED, id, encoded);
+        taskQueue.add(new Task(round, task, id, tasksAdded(1), future));
+        unlockedAdded();
+        return ticket;
+    }
+
+    private long enqueueUnlockedAll(Object[] batch, byte[][] encoded) {
+        if (closed) {
+            capacity.release(batch.length);
+            ensureOpen();
+        }
+        if (batch.length == 0) {
+            return 0;
+        }
+        Round<R> round = admit(batch.length);
+        int firstId = round.nextIds(batch.length);
+        long ticket = 0;
+        for (int i = 0; encoded != null && i < batch.length; ++i) {
+            ticket = journal.append(round.sequence, Journal.SUBMITTED, firstId + i, encoded[i]);
+        }
+        long addedAt = tasksAdded(batch.length);
+        int chunkSize = chunkSize(batch.length);
+        for (int from = 0; from < batch.length; from += chunkSize) {
+            taskQueue.add(new Chunk(round, batch, from, Math.min(batch.length, from + chunkSize), firstId, addedAt));
+        }
+        unlockedAdded();
+        return ticket;
+    }
+
+    // Counts the tasks in as pending in the current round, unless it is just being finished:
+    // then the next one is about to take over, see finishRound()
+    private Round<R> admit(int tasks) {
+        while (true) {
+            Round<R> round = currentRound;
+            if (round.tryAdmit(tasks)) {
+                return round;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    // close() may have drained the queue just before the tasks went in
+    private void unlockedAdded() {
+        if (closed) {
+            synchronized (this) {
+                discardQueuedTasks();
+            }
+        }
+        signalWorkers();
+    }
+
+    // Encoding or spilling the task can fail, it then fails right away rather than keeping its round pending
+    private void addTask(QueuedWork work) {
+        try {
+            taskQueue.add(work);
+        } catch (RuntimeException | Error e) {
+            Task task = (Task) work;
+            capacity.release(1);
+            finishTask(task.round, task.id, task.future, false, null, TaskResult.failed(e));
+            throw e;
+        }
+    }
+
+    // A task of priority p ranks as if it had been added p aging periods earlier,
+    // so everything queued moves up over time. Called holding the monitor.
+    private QueuedWork placed(QueuedWork work, int priority, int lane) {
+        work.lane = lane;
+        if (prioritized) {
+            // Capped, so comparing two ranks by their difference can not overflow
+            double boost = Math.max(-BOOST_LIMIT, Math.min(BOOST_LIMIT, (double) priority * priorityAging));
+            work.rank = System.nanoTime() - (long) boost;
+            work.sequence = ++enqueueSequence;
+        }
+        return work;
+    }
+
+    private static Map<String, Integer> laneIndex(Map<String, int[]> configured) {
+        if (configured.isEmpty()) {
+            return Map.of();
+        }
+        Map<String, Integer> index = new HashMap<>();
+        index.put(DEFAULT_LANE, 0);
+        for (String name : configured.keySet()) {
+            index.putIfAbsent(name, index.size());
+        }
+        return Map.copyOf(index);
+    }
+
+    // The default lane has weight 1 and no limits of its own unless configured otherwise
+    private static LaneQueue createLaneQueue(
+            Map<String, int[]> configured,
+            Map<String, double[]> rateLimits,
+            Map<String, Integer> index
+    ) {
+        int[] weights = new int[index.size()];
+        int[] limits = new int[index.size()];
+        TokenBucket[] buckets = new TokenBucket[index.size()];
+        weights[0] = 1;
+        limits[0] = Integer.MAX_VALUE;
+        configured.forEach((name, settings) -> {
+            weights[index.get(name)] = settings[0];
+            limits[index.get(name)] = settings[1];
+        });
+        rateLimits.forEach((name, rate) -> {
+            Integer lane = index.get(name);
+            if (lane == null) {
+                throw new IllegalArgumentException("Unknown lane: " + name);
+            }
+            buckets[lane] = new TokenBucket(rate[0], (int) rate[1]);
+        });
+        return new LaneQueue(weights, limits, buckets,
+                work -> ((WorkQueue<?, ?>.QueuedWork) work).lane,
+                work -> ((WorkQueue<?, ?>.QueuedWork) work).size());
+    }
+
+    private int laneOf(String lane) {
+        if (lanes.isEmpty()) {
+            throw new IllegalStateException("Lanes are not enabled for this queue");
+        }
+        Integer index = lanes.get(lane);
+        if (index == null) {
+            throw new IllegalArgumentException("Unknown lane: " + lane);
+        }
+        return index;
+    }
+
+    /**
+     * Takes room in the queue and then in the lane, the lane queue gives the latter back
+     * as it hands the tasks out.
+     *
+     * @throws IllegalStateException if the queue or the lane is full
+     */
+    private void reserve(int lane, int tasks) {
+        if (!capacity.tryAcquire(tasks)) {
+            throw new IllegalStateException("Tasks queue limit is reached");
+        }
+        if (!tryReserveLane(lane, tasks)) {
+            throw new IllegalStateException("Lane queue limit is reached");
+        }
+    }
+
+    /**
+     * Like {@link #reserve(int, int)}, but reports a full queue or lane rather than throwing.
+     *
+     * @return false if the queue or the lane is full
+     */
+    private boolean tryReserve(int lane, int tasks) {
+        return capacity.tryAcquire(tasks) && tryReserveLane(lane, tasks);
+    }
+
+    // Gives the room in the queue back if the lane has none
+    private boolean tryReserveLane(int lane, int tasks) {
+        if (laneQueue == null || laneQueue.tryReserve(lane, tasks)) {
+            return true;
+        }
+        capacity.release(tasks);
+        return false;
+    }
+
+    // Waits for room in the lane once the queue has given some, which goes back if the lane has none in time
+    private boolean acquireLane(int lane, long timeout, TimeUnit unit) throws InterruptedException {
+        if (laneQueue == null) {
+            return true;
+        }
+        boolean acquired = false;
+        try {
+            acquired = laneQueue.reserve(lane, 1, timeout, unit);
+            return acquired;
+        } finally {
+            if (!acquired) {
+                capacity.release(1);
+            }
+        }
+    }
+
+    // For tasks turned away before they were enqueued
+    private void releaseRoom(int lane, int tasks) {
+        capacity.release(tasks);
+        if (laneQueue != null) {
+            laneQueue.release(lane, tasks);
+        }
+    }
+
+    private static int compareRanks(Runnable a, Runnable b) {
+        WorkQueue<?, ?>.QueuedWork first = (WorkQueue<?, ?>.QueuedWork) a;
+        WorkQueue<?, ?>.QueuedWork second = (WorkQueue<?, ?>.QueuedWork) b;
+        int byRank = Long.signum(first.rank - second.rank);
+        return byRank != 0 ? byRank : Long.compare(first.sequence, second.sequence);
+    }
+
+    // Small enough to give every worker a few chunks, so a batch still spreads over the pool
+    private int chunkSize(int batchSize) {
+        if (rateLimited || currentRound.sink instanceof SubmissionOrderStream) {
+            // The window would hold the next chunk back until the one before it is through
+            return 1;
+        }
+        return Math.max(1, Math.min(MAX_CHUNK_SIZE, batchSize / (maxWorkers * CHUNKS_PER_WORKER)));
+    }
+
+    // A worker runs a chunk's tasks one after another, which a submission order window would
+    // turn into running one task at a time, so queued chunks are split up in place. Called
+    // holding the monitor: nothing is added meanwhile and the queue keeps its order.
+    private void unchunkQueuedTasks() {
+        List<Runnable> queued = new ArrayList<>();
+        taskQueue.drainTo(queued);
+        for (Runnable work : queued) {
+            if (work instanceof WorkQueue<?, ?>.Chunk) {
+                @SuppressWarnings("unchecked")
+                Chunk chunk = (Chunk) work;
+                chunk.split(taskQueue);
+            } else {
+                taskQueue.add(work);
+            }
+        }
+        signalWorkers();
+    }
+
+    // Called from a handler, so the round can not finish under our feet: the
+    // handler's own task keeps it pending. No need for the monitor then.
+    private void enqueueLocal(WorkStealingDispatcher dispatcher, Collection<T> tasks, CompletableFuture<R> future) {
+        if (closed) {
+            capacity.release(tasks.size());
+            ensureOpen();
+        }
+        Round<R> round = currentRound;
+        long addedAt = tasksAdded(tasks.size());
+        for (T t : tasks) {
+            int id = round.nextId();
+            round.pendingTasks.incrementAndGet();
+            dispatcher.submitLocal(new Task(round, t, id, addedAt, future));
+        }
+    }
+
+    // Adds the task to the open batch, which goes to the workers once it is full or its
+    // linger time is up. Called holding the monitor.
+    private void gather(Task task) {
+        Batch batch = openBatch;
+        if (batch != null && batch.round != task.round) {
+            flush(batch);
+            batch = null;
+        }
+        if (batch == null) {
+            batch = new Batch(task.round);
+            Batch lingering = batch;
+            batch.linger = timer().schedule(() -> flush(lingering), maxLinger, TimeUnit.MILLISECONDS);
+            openBatch = batch;
+        }
+        batch.tasks.add(task);
+        if (batch.tasks.size() == maxBatchSize) {
+            batch.linger.cancel(false);
+            openBatch = null;
+            taskQueue.add(batch);
+        }
+    }
+
+    private synchronized void flush(Batch batch) {
+        if (openBatch == batch) {
+            openBatch = null;
+            taskQueue.add(batch);
+            signalWorkers();
+        }
+    }
+
+    // Tasks leave the queue for good, they no longer count against its limit
+    private void discardQueuedTasks() {
+        List<Runnable> discarded = new ArrayList<>();
+        taskQueue.drainTo(discarded);
+        if (openBatch != null) {
+            openBatch.linger.cancel(false);
+            discarded.add(openBatch);
+            openBatch = null;
+        }
+        int tasks = 0;
+        for (Runnable runnable : discarded) {
+            WorkQueue<?, ?>.QueuedWork work = (WorkQueue<?, ?>.QueuedWork) runnable;
+            work.discard();
+            tasks += work.size();
+        }
+        capacity.release(tasks);
+    }
+
+    // Returns the timestamp the tasks were added at, only taken when metrics are recorded
+    private long tasksAdded(int count) {
+        if (!recordMetrics) {
+            return 0;
+        }
+        metrics.tasksAdded(count);
+        return System.nanoTime();
+    }
+
+    private void runTask(QueuedWork work, T task, int id, int attempt, CompletableFuture<R> future) {
+        capacity.release(1);
+        Round<R> round = work.round;
+        ResultSink<R> sink = round.sink;
+        boolean started = false;
+        // A retry keeps the turn its first attempt took
+        boolean turnTaken = attempt > 1;
+        boolean completed = false;
+        boolean retrying = false;
+        long startedAt = 0;
+        R result = null;
+        TaskResult<R> failure = TaskResult.cancelled();
+        TaskRun run = null;
+        try {
+            if (round.abandoned || closed || future != null && future.isCancelled()) {
+                return;
+            }
+            if (!turnTaken) {
+                sink.awaitTurn(id);
+                turnTaken = true;
+            }
+            if (recordMetrics) {
+                startedAt = System.nanoTime();
+            }
+            started = true;
+            metrics.handlerStarted();
+            run = startRun(round);
+            result = handle(task);
+            TaskStatus cancelledAs = finishRun(round, run);
+            run = null;
+            if (cancelledAs == null) {
+                round.complete(sink, id, result);
+                completed = true;
+            } else {
+                failure = cancelledOutcome(cancelledAs);
+            }
+        } catch (InterruptedException e) {
+            // Waiting for the turn or for an identical task, the run tells a timeout apart
+            TaskStatus cancelledAs = finishRun(round, run);
+            run = null;
+            if (cancelledAs != null) {
+                failure = cancelledOutcome(cancelledAs);
+            } else {
+                Thread.currentThread().interrupt();
+            }
+        } catch (RuntimeException | Error e) {
+            TaskStatus cancelledAs = finishRun(round, run);
+            run = null;
+            if (cancelledAs != null) {
+                // Most likely the handler giving up on the interrupt, nothing to report
+                failure = cancelledOutcome(cancelledAs);
+            } else if (retries(round, attempt, future, e)) {
+                scheduleRetry(work, task, id, attempt + 1, future);
+                retrying = true;
+            } else {
+                failure = TaskResult.failed(e);
+                throw e;
+            }
+        } finally {
+            if (run != null) {
+                finishRun(round, run);
+            }
+            if (!completed && !retrying) {
+                round.fail(sink, id, failure);
+                if (turnTaken) {
+                    sink.releaseTurn(id);
+                }
+            }
+            if (future != null && !retrying) {
+                settle(future, completed, result, failure);
+            }
+            if (started) {
+                metrics.handlerFinished();
+                if (recordMetrics) {
+                    metrics.taskRecorded(startedAt - work.addedAt, System.nanoTime() - startedAt, !completed);
+                }
+            }
+            if (!retrying) {
+                journalOutcome(round, id, completed, result, failure);
+                taskDone(round);
+            }
+        }
+    }
+
+    // The task counts as finished once its outcome has been recorded
+    private void taskDone(Round<R> round) {
+        if (round.pendingTasks.decrementAndGet() == 0) {
+            if (journal != null && !closed) {
+                // Nothing else may come along to write the outcomes out for a while
+                journal.writeOut();
+            }
+            synchronized (this) {
+                notifyAll();
+            }
+            round.sink.onIdle();
+            completeAsync(round);
+        }
+    }
+
+    // One worker runs the whole batch, each task then gets its own outcome
+    private void runBatch(Batch batch) {
+        Round<R> round = batch.round;
+        capacity.release(batch.size());
+        List<Task> live = new ArrayList<>(batch.size());
+        for (Task task : batch.tasks) {
+            if (round.abandoned || closed || task.future != null && task.future.isCancelled()) {
+                finishTask(round, task.id, task.future, false, null, TaskResult.cancelled());
+            } else {
+                live.add(task);
+            }
+        }
+        if (live.isEmpty()) {
+            return;
+        }
+        List<T> items = new ArrayList<>(live.size());
+        for (Task task : live) {
+            items.add(task.task);
+        }
+        long startedAt = recordMetrics ? System.nanoTime() : 0;
+        metrics.handlerStarted();
+        List<R> results = null;
+        Throwable error = null;
+        TaskStatus cancelledAs;
+        TaskRun run = startRun(round);
+        try {
+            results = batchHandler.apply(Collections.unmodifiableList(items));
+            if (results == null || results.size() != items.size()) {
+                throw new IllegalStateException("Batch handler returned "
+                        + (results == null ? "no" : results.size()) + " results for " + items.size() + " tasks");
+            }
+        } catch (RuntimeException | Error e) {
+            // Every task is settled below before it is rethrown, or the round would never end
+            error = e;
+        } finally {
+            cancelledAs = finishRun(round, run);
+            metrics.handlerFinished();
+        }
+        long finishedAt = recordMetrics ? System.nanoTime() : 0;
+        boolean failed = false;
+        for (int i = 0; i < live.size(); ++i) {
+            Task task = live.get(i);
+            boolean completed = cancelledAs == null && error == null;
+            if (completed) {
+                finishTask(round, task.id, task.future, true, results.get(i), null);
+            } else if (cancelledAs != null) {
+                finishTask(round, task.id, task.future, false, null, cancelledOutcome(cancelledAs));
+            } else if (retries(round, task.attempt, task.future, error)) {
+                scheduleRetry(task, task.task, task.id, task.attempt + 1, task.future);
+            } else {
+                finishTask(round, task.id, task.future, false, null, TaskResult.failed(error));
+                failed = true;
+            }
+            if (recordMetrics) {
+                metrics.taskRecorded(startedAt - task.addedAt, finishedAt - startedAt, !completed);
+            }
+        }
+        if (failed) {
+            if (error instanceof Error e) {
+                throw e;
+            }
+            throw (RuntimeException) error;
+        }
+    }
+
+    private void finishTask(
+            Round<R> round,
+            int id,
+            CompletableFuture<R> future,
+            boolean completed,
+            R result,
+            TaskResult<R> failure
+    ) {
+        if (completed) {
+            round.complete(round.sink, id, result);
+        } else {
+            round.fail(round.sink, id, failure);
+        }
+        if (future != null) {
+            settle(future, completed, result, failure);
+        }
+        journalOutcome(round, id, completed, result, failure);
+        taskDone(round);
+    }
+
+    // Written behind, a crash before the write-out only costs running the task again. The
+    // outcomes of a closed queue are left out, its unfinished tasks are for the next one.
+    private void journalOutcome(Round<R> round, int id, boolean completed, R result, TaskResult<R> failure) {
+        if (journal == null || closed) {
+            return;
+        }
+        if (completed) {
+            byte[] encoded;
+            try {
+                encoded = Journal.encode(result, resultCodec);
+            } catch (RuntimeException e) {
+                // The result can not be kept, so it is left to run again
+                return;
+            }
+            journal.append(round.sequence, Journal.COMPLETED, id, encoded);
+        } else {
+            switch (failure.status()) {
+                case FAILED -> journal.append(round.sequence, Journal.FAILED, id,
+                        String.valueOf(failure.error()).getBytes(StandardCharsets.UTF_8));
+                case TIMED_OUT -> journal.append(round.sequence, Journal.TIMED_OUT, id, null);
+                default -> journal.append(round.sequence, Journal.CANCELLED, id, null);
+            }
+        }
+        journal.flushFull();
+        if (syncOnAdd && outcomesBuffered.compareAndSet(false, true)) {
+            // Background syncs write them out otherwise
+            try {
+                timer().schedule(this::writeOutcomes, OUTCOME_WRITE_DELAY, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Closed in the meantime, which writes them out
+            }
+        }
+    }
+
+    private void writeOutcomes() {
+        // Cleared first, outcomes appended while writing out schedule the next one
+        outcomesBuffered.set(false);
+        journal.writeOut();
+    }
+
+    // Tasks that had finished get their outcomes back, the rest are queued again under their
+    // old ids, in the default lane and at no priority
+    private void recover(Round<R> round) {
+        Map<Integer, byte[]> unfinished = new TreeMap<>();
+        journal.replay(round.sequence, (type, id, value) -> {
+            if (type == Journal.SUBMITTED) {
+                unfinished.put(id, value);
+                round.totalTasks.accumulateAndGet(id + 1, Math::max);
+                round.results.reserve(id + 1);
+            } else if (unfinished.containsKey(id)) {
+                unfinished.remove(id);
+                switch (type) {
+                    case Journal.COMPLETED -> round.complete(round.results, id,
+                            value == null ? null : resultCodec.decode(ByteBuffer.wrap(value)));
+                    case Journal.FAILED -> round.fail(round.results, id, TaskResult.failed(new IllegalStateException(
+                            "Failed before the queue was restarted: " + new String(value, StandardCharsets.UTF_8))));
+                    case Journal.TIMED_OUT -> round.fail(round.results, id, TaskResult.timedOut());
+                    default -> round.fail(round.results, id, TaskResult.cancelled());
+                }
+            }
+        });
+        round.pendingTasks.set(unfinished.size());
+        capacity.forceAcquire(unfinished.size());
+        long addedAt = tasksAdded(unfinished.size());
+        unfinished.forEach((id, value) -> {
+            T task;
+            try {
+                task = value == null ? null : journalCodec.decode(ByteBuffer.wrap(value));
+            } catch (RuntimeException e) {
+                capacity.release(1);
+                finishTask(round, id, null, false, null, TaskResult.failed(e));
+                return;
+            }
+            Task work = new Task(round, task, id, addedAt, null);
+            if (laneQueue != null) {
+                laneQueue.reserve(0, 1);
+            }
+            if (batchHandler != null) {
+                gather(work);
+                return;
+            }
+            try {
+                addTask(placed(work, 0, 0));
+            } catch (RuntimeException e) {
+                // Failed along with its task, the rest of the round still resumes
+            }
+        });
+    }
+
+    // A task that runs on its own, i.e. a retry, makes a batch of one
+    private R handleAlone(T task, WorkQueue<T, R> queue) {
+        List<R> results = batchHandler.apply(Collections.singletonList(task));
+        if (results == null || results.size() != 1) {
+            throw new IllegalStateException("Batch handler returned no result for a single task");
+        }
+        return results.get(0);
+    }
+
+    private boolean retries(Round<R> round, int attempt, CompletableFuture<R> future, Throwable error) {
+        return retryPolicy != null
+                && retryPolicy.retries(attempt, error)
+                && !round.abandoned
+                && !closed
+                && (future == null || !future.isCancelled());
+    }
+
+    // The task stays pending in its round and keeps its room in the queue while it backs off,
+    // but no worker waits for it: the timer puts it back into the queue
+    private void scheduleRetry(QueuedWork failed, T task, int id, int attempt, CompletableFuture<R> future) {
+        Task retry = new Task(failed.round, task, id, failed.addedAt, future, attempt);
+        retry.lane = failed.lane;
+        // Keeps the rank it has earned by waiting so far
+        retry.rank = failed.rank;
+        capacity.forceAcquire(1);
+        failed.round.retries.add(retry);
+        try {
+            timer().schedule(() -> requeue(retry), retryPolicy.backoff(attempt - 1), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Closed in the meantime
+            dropRetries(failed.round);
+        }
+    }
+
+    // Unless the round has moved on without it, which has settled the retry already
+    private synchronized void requeue(Task retry) {
+        if (!retry.round.retries.remove(retry)) {
+            return;
+        }
+        if (laneQueue != null) {
+            laneQueue.reserve(retry.lane, 1);
+        }
+        if (prioritized) {
+            retry.sequence = ++enqueueSequence;
+        }
+        if (batchHandler != null) {
+            gather(retry);
+        } else {
+            addTask(retry);
+        }
+        signalWorkers();
+    }
+
+    // Retries still backing off run right away, only to settle as cancelled
+    private void dropRetries(Round<R> round) {
+        for (Runnable retry : round.retries) {
+            if (round.retries.remove(retry)) {
+                retry.run();
+            }
+        }
+    }
+
+    private R handle(T task) throws InterruptedException {
+        if (cache == null || task == null) {
+            return handler.apply(task, this);
+        }
+        return cache.get(task, key -> handler.apply(key, this));
+    }
+
+    private TaskRun startRun(Round<R> round) {
+        if (!trackRuns) {
+            return null;
+        }
+        TaskRun run = new TaskRun(Thread.currentThread());
+        round.runs.add(run);
+        if (taskTimeout > 0) {
+            run.timeout(timer().schedule(run, taskTimeout, TimeUnit.MILLISECONDS));
+        }
+        // Either the round sees this run when it is abandoned, or the run sees the round abandoned
+        if (round.abandoned) {
+            run.cancel(TaskStatus.CANCELLED);
+        }
+        return run;
+    }
+
+    private TaskStatus finishRun(Round<R> round, TaskRun run) {
+        if (run == null) {
+            return null;
+        }
+        round.runs.remove(run);
+        return run.finish();
+    }
+
+    private static <R> TaskResult<R> cancelledOutcome(TaskStatus status) {
+        return status == TaskStatus.TIMED_OUT ? TaskResult.timedOut() : TaskResult.cancelled();
+    }
+
+    private static <R> void settle(CompletableFuture<R> future, boolean completed, R result, TaskResult<R> failure) {
+        if (completed) {
+            future.complete(result);
+            return;
+        }
+        switch (failure.status()) {
+            case FAILED -> future.completeExceptionally(failure.error());
+            case TIMED_OUT -> future.completeExceptionally(new TimeoutException("Task timed out"));
+            default -> future.cancel(false);
+        }
+    }
+
+    private void completeAsync(Round<R> round) {
+        CompletableFuture<List<R>> completion = round.completion;
+        if (completion != null && finishRound(round)) {
+            completion.complete(round.results.toList(round.totalTasks.get()));
+        }
+    }
+
+    private void signalWorkers() {
+        Dispatcher dispatcher = this.dispatcher.get();
+        if (dispatcher != null) {
+            dispatcher.signal();
+        }
+    }
+
+    // Holding the monitor while switching rounds keeps add() from slipping a task
+    // into a round that has already been handed out
+    private synchronized List<R> awaitCompletion() throws InterruptedException {
+        Round<R> round = unstreamedRound();
+        return awaitRound(round) ? round.results.toList(round.totalTasks.get()) : null;
+    }
+
+    private synchronized List<TaskResult<R>> awaitOutcomes() throws InterruptedException {
+        Round<R> round = unstreamedRound();
+        awaitRound(round);
+        return round.results.toOutcomes(round.totalTasks.get());
+    }
+
+    private Round<R> unstreamedRound() {
+        Round<R> round = currentRound;
+        if (round.sink != round.results) {
+            throw new IllegalStateException("Results of this round are already being streamed");
+        }
+        return round;
+    }
+
+    /**
+     * @return false if the round ran out of time and has been abandoned
+     */
+    private synchronized boolean awaitRound(Round<R> round) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(executionTimeout);
+        while (!finishRound(round)) {
+            ensureOpen();
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                abandonRound(round);
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    private synchronized boolean finishRound(Round<R> round) {
+        if (round.pendingTasks.get() > 0) {
+            return false;
+        }
+        if (currentRound == round) {
+            // Tasks added without the monitor may be joining the round right now, it is sealed
+            // first and only finished once they are either counted in or turned away
+            round.sealed = true;
+            while (round.admitting.get() > 0) {
+                Thread.onSpinWait();
+            }
+            if (round.pendingTasks.get() > 0) {
+                round.sealed = false;
+                return false;
+            }
+            currentRound = nextRound();
+        }
+        return true;
+    }
+
+    // The leftovers of an abandoned round must not leak into the next one
+    private synchronized void abandonRound(Round<R> round) {
+        if (currentRound == round) {
+            round.abandoned = true;
+            discardQueuedTasks();
+            round.runs.forEach(run -> run.cancel(TaskStatus.CANCELLED));
+            dropRetries(round);
+            currentRound = nextRound();
+        }
+    }
+
+    // Called holding the monitor, a journal only ever holds the round in progress
+    private Round<R> nextRound() {
+        Round<R> round = new Round<>();
+        if (journal != null) {
+            journal.reset(round.sequence);
+        }
+        return round;
+    }
+
+    public static final class Builder<T, R> {
+        private final BiFunction<T, WorkQueue<T, R>, R> handler;
+        private final Function<List<T>, List<R>> batchHandler;
+        private int maxBatchSize;
+        private long maxLinger;
+        private int maxQueueSize = Integer.MAX_VALUE;
+        private int minWorkers = 1;
+        private int maxWorkers = Runtime.getRuntime().availableProcessors();
+        private long keepAliveTime = 60_000;
+        private int executionTimeout = Integer.MAX_VALUE;
+        private long taskTimeout;
+        private boolean persistent;
+        private ExecutionMode executionMode = ExecutionMode.PLATFORM_THREADS;
+        private boolean prioritized;
+        private long priorityAging = 100;
+        private final Map<String, int[]> lanes = new LinkedHashMap<>();
+        private long cacheWeight;
+        private long cacheTimeToLive;
+        private ToLongBiFunction<? super T, ? super R> cacheWeigher = (task, result) -> 1;
+        private RetryPolicy retryPolicy;
+        private double rateLimit;
+        private int rateBurst;
+        private final Map<String, double[]> laneRateLimits = new LinkedHashMap<>();
+        private TaskCodec<T> taskCodec;
+        private int segmentSize = 1 << 20;
+        private Path spillDirectory;
+        private int ringSize;
+        private int shards;
+        private WaitStrategy waitStrategy = WaitStrategy.BLOCKING;
+        private int memoryLimit;
+        private Path journalFile;
+        private TaskCodec<T> journalCodec;
+        private TaskCodec<R> resultCodec;
+        private long journalCompaction = 64L << 20;
+        private long journalSyncInterval;
+        private boolean metrics;
+        private WorkQueueListener listener = new WorkQueueListener() {
+        };
+
+        private Builder(BiFunction<T, WorkQueue<T, R>, R> handler) {
+            this.handler = handler;
+            this.batchHandler = null;
+        }
+
+        private Builder(Function<List<T>, List<R>> batchHandler) {
+            this.handler = null;
+            this.batchHandler = batchHandler;
+        }
+
+        public Builder<T, R> maxQueueSize(int maxQueueSize) {
+            this.maxQueueSize = maxQueueSize;
+            return this;
+        }
+
+        public Builder<T, R> minWorkers(int minWorkers) {
+            this.minWorkers = minWorkers;
+            return this;
+        }
+
+        public Builder<T, R> maxWorkers(int maxWorkers) {
+            this.maxWorkers = maxWorkers;
+            return this;
+        }
+
+        /**
+         * How long, in milliseconds, a worker above {@code minWorkers} may stay idle before it exits.
+         */
+        public Builder<T, R> keepAliveTime(long keepAliveTime) {
+            this.keepAliveTime = keepAliveTime;
+            return this;
+        }
+
+        public Builder<T, R> executionTimeout(int executionTimeout) {
+            this.executionTimeout = executionTimeout;
+            return this;
+        }
+
+        /**
+         * How long, in milliseconds, a single handler may run before it is interrupted and its
+         * task counts as {@link TaskStatus#TIMED_OUT}. Zero, the default, means no limit.
+         */
+        public Builder<T, R> taskTimeout(long taskTimeout) {
+            this.taskTimeout = taskTimeout;
+            return this;
+        }
+
+        /**
+         * Keeps the workers alive between {@link #execute()} calls until the queue is closed.
+         */
+        public Builder<T, R> persistent(boolean persistent) {
+            this.persistent = persistent;
+            return this;
+        }
+
+        /**
+         * With {@link ExecutionMode#VIRTUAL_THREADS} {@code maxWorkers} caps the number of
+         * tasks in flight, while {@code minWorkers} and {@code keepAliveTime} do not apply.
+         */
+        public Builder<T, R> executionMode(ExecutionMode executionMode) {
+            this.executionMode = executionMode;
+            return this;
+        }
+
+        /**
+         * Picks queued tasks up by priority rather than in the order they were added,
+         * see {@link WorkQueue#add(Object, int)}. Not available with {@link ExecutionMode#WORK_STEALING}.
+         */
+        public Builder<T, R> prioritized(boolean prioritized) {
+            this.prioritized = prioritized;
+            return this;
+        }
+
+        /**
+         * How many milliseconds of waiting one priority level is worth. A task waiting that
+         * long overtakes tasks added later with a priority one higher. Defaults to 100.
+         */
+        public Builder<T, R> priorityAging(long priorityAging) {
+            this.priorityAging = priorityAging;
+            return this;
+        }
+
+        /**
+         * Adds a lane, a sub-queue of its own for e.g. one tenant, see {@link WorkQueue#add(String, Object)}.
+         * Lanes share the workers by deficit round robin: with a backlog everywhere, each lane
+         * gets a share of the dispatched tasks proportional to its weight, so a lane flooded
+         * with tasks can not hold the others up. Tasks added without a lane go to
+         * {@link WorkQueue#DEFAULT_LANE}, which has weight 1 unless configured here.
+         *
+         * @param maxQueueSize how many tasks may wait in this lane, on top of the queue-wide limit
+         */
+        public Builder<T, R> lane(String name, int weight, int maxQueueSize) {
+            if (weight < 1) {
+                throw new IllegalArgumentException("Lane weight must be positive");
+            }
+            lanes.put(Objects.requireNonNull(name), new int[]{weight, maxQueueSize});
+            return this;
+        }
+
+        public Builder<T, R> lane(String name, int weight) {
+            return lane(name, weight, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Memoizes results by task, as told apart by {@code equals}: a task equal to one that
+         * already ran gets the same result without calling the handler, and one equal to a
+         * task still running waits for that task rather than running alongside it. Failures
+         * are shared with the waiting tasks but not cached.
+         * <p>
+         * Over the weight limit, results are evicted oldest first. A result hit since the sweep
+         * last passed it is spared once and gets to the back of the line instead.
+         *
+         * @param maxWeight  how much the cached results may weigh together, see
+         *                   {@link #cacheWeigher(ToLongBiFunction)}
+         * @param timeToLive how long, in milliseconds, a result stays valid, zero for no limit
+         */
+        public Builder<T, R> memoize(long maxWeight, long timeToLive) {
+            this.cacheWeight = maxWeight;
+            this.cacheTimeToLive = timeToLive;
+            return this;
+        }
+
+        /**
+         * Weighs a cached result, every result weighs 1 by default.
+         */
+        public Builder<T, R> cacheWeigher(ToLongBiFunction<? super T, ? super R> cacheWeigher) {
+            this.cacheWeigher = Objects.requireNonNull(cacheWeigher);
+            return this;
+        }
+
+        /**
+         * Runs a task again when its handler throws, as the policy allows. Only the final
+         * attempt's outcome makes it into the results, while {@link #metrics(boolean) metrics}
+         * count every attempt. Tasks that timed out or were cancelled are not retried.
+         */
+        public Builder<T, R> retry(RetryPolicy retryPolicy) {
+            this.retryPolicy = Objects.requireNonNull(retryPolicy);
+            return this;
+        }
+
+        /**
+         * Hands tasks to the workers at no more than {@code tasksPerSecond} on average, and no
+         * more than {@code burst} at once after a quiet spell. The limit applies where workers
+         * pick tasks up, so a worker is never held up with a task that waits for its turn, and
+         * batches are handed out task by task rather than in chunks. Retries count against it
+         * as well. Not available with {@link ExecutionMode#WORK_STEALING}.
+         */
+        public Builder<T, R> rateLimit(double tasksPerSecond, int burst) {
+            checkRate(tasksPerSecond, burst);
+            this.rateLimit = tasksPerSecond;
+            this.rateBurst = burst;
+            return this;
+        }
+
+        /**
+         * Rate limit of a single lane, on top of the {@link #rateLimit(double, int) queue-wide one}.
+         * A lane that has used up its budget does not hold the other lanes up.
+         */
+        public Builder<T, R> laneRateLimit(String lane, double tasksPerSecond, int burst) {
+            checkRate(tasksPerSecond, burst);
+            laneRateLimits.put(Objects.requireNonNull(lane), new double[]{tasksPerSecond, burst});
+            return this;
+        }
+
+        private static void checkRate(double tasksPerSecond, int burst) {
+            if (!(tasksPerSecond > 0) || burst < 1) {
+                throw new IllegalArgumentException("Rate limit is invalid");
+            }
+        }
+
+        /**
+         * How the tasks of a {@link WorkQueue#batchBuilder(Function) batch handling} queue are
+         * grouped: a batch is handed to the workers once it holds {@code maxBatchSize} tasks, or
+         * {@code maxLinger} milliseconds after its first task came in. Default to 64 and 5.
+         * A {@link #taskTimeout(long) task timeout} then limits the handler's call on a whole batch.
+         */
+        public Builder<T, R> batching(int maxBatchSize, long maxLinger) {
+            this.maxBatchSize = maxBatchSize;
+            this.maxLinger = maxLinger;
+            return this;
+        }
+
+        /**
+         * Keeps queued tasks encoded in direct memory rather than as objects on the heap, for
+         * backlogs so big that they would keep the garbage collector busy. Tasks are encoded
+         * as they are added and decoded by the worker about to run them, handlers see them as
+         * usual. Tasks added with {@link WorkQueue#submit(Object)} stay on the heap. Adding a
+         * task the codec throws on rethrows its exception and fails the task.
+         */
+        public Builder<T, R> offHeap(TaskCodec<T> taskCodec) {
+            this.taskCodec = Objects.requireNonNull(taskCodec);
+            return this;
+        }
+
+        /**
+         * Keeps up to {@code memoryLimit} queued tasks in memory and spills the rest to
+         * memory-mapped files in the directory, which are paged back in as the workers catch
+         * up. The backlog then grows without growing the heap, in FIFO order as usual. Files
+         * are deleted as they drain and when the queue is closed. Tasks added with
+         * {@link WorkQueue#submit(Object)} stay on the heap. Adding a task that can not be
+         * spilled throws an {@link UncheckedIOException} and fails the task.
+         */
+        public Builder<T, R> spillToDisk(TaskCodec<T> taskCodec, Path directory, int memoryLimit) {
+            this.taskCodec = Objects.requireNonNull(taskCodec);
+            this.spillDirectory = Objects.requireNonNull(directory);
+            this.memoryLimit = memoryLimit;
+            return this;
+        }
+
+        /**
+         * Bytes allocated at a time for {@link #offHeap(TaskCodec) off-heap} tasks, and the
+         * size of a {@link #spillToDisk(TaskCodec, Path, int) spill} file. 1 MiB by default.
+         */
+        public Builder<T, R> segmentSize(int segmentSize) {
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        /**
+         * Hands tasks to the workers through a preallocated ring of {@code size} slots, rounded
+         * up to a power of two, rather than a linked queue: adding a task takes no lock and
+         * allocates nothing, which matters for tiny tasks added at millions a second. Idle
+         * workers follow the {@link #waitStrategy(WaitStrategy) wait strategy} and then block,
+         * producers only signal them while some do. Size the ring for the usual backlog, tasks
+         * beyond it wait in a regular linked list. Not available with priorities, lanes,
+         * off-heap storage or {@link ExecutionMode#WORK_STEALING}.
+         */
+        public Builder<T, R> ringBuffer(int size) {
+            if (size < 1) {
+                throw new IllegalArgumentException("Ring buffer size must be positive");
+            }
+            this.ringSize = size;
+            return this;
+        }
+
+        /**
+         * Shorthand for {@link #ringBuffer(int)} along with {@link #waitStrategy(WaitStrategy)}.
+         */
+        public Builder<T, R> ringBuffer(int size, WaitStrategy waitStrategy) {
+            return ringBuffer(size).waitStrategy(waitStrategy);
+        }
+
+        /**
+         * Splits the task queue into {@code shards} queues, so that many producers adding at
+         * once neither queue up on the queue's monitor nor all contend for one counter: tasks
+         * are added without the monitor, each producer thread sticks to one shard and a stripe
+         * of the {@code maxQueueSize} limit of its own, and workers sweep the shards round robin.
+         * The limit still holds, but a producer racing with others may be turned down slightly
+         * short of it. Tasks of one producer are handed out in order, across producers only
+         * roughly so, which rules out {@link ResultOrder#SUBMISSION} streaming. Results keep
+         * their submission order as usual. A shard per core or so is plenty. Not available with
+         * priorities, lanes, batching, off-heap storage or a ring buffer.
+         */
+        public Builder<T, R> sharded(int shards) {
+            this.shards = shards;
+            return this;
+        }
+
+        /**
+         * How idle workers wait for the next task, {@link WaitStrategy#BLOCKING} by default.
+         * Strategies that spin trade CPU for the latency of picking up a task that comes in
+         * while all workers are idle. Not available with {@link ExecutionMode#WORK_STEALING},
+         * whose workers belong to a fork/join pool.
+         */
+        public Builder<T, R> waitStrategy(WaitStrategy waitStrategy) {
+            this.waitStrategy = Objects.requireNonNull(waitStrategy);
+            return this;
+        }
+
+        /**
+         * Keeps a write-ahead log of the round in the file, so that a queue built on the same
+         * file after the process died, or after {@link WorkQueue#close()}, picks the round up:
+         * tasks that had finished get their outcomes back without running again and the rest
+         * are queued again under their old ids, ready for the next {@link WorkQueue#execute()}.
+         * They come back in the default lane and at no priority, failures come back as an
+         * {@link IllegalStateException} with the original message.
+         * <p>
+         * Adding a task returns once it is on disk. Producers adding at the same time share a
+         * sync, as do the tasks of one {@link WorkQueue#addAll(Collection)}, so the cost is a
+         * sync per group rather than per task, see {@link #journalSyncInterval(long)} to not
+         * wait at all. Outcomes are written behind, within milliseconds and as soon as the round
+         * has no task left to run, so a task that finished just before a crash may run again.
+         * The log is emptied as rounds end, see {@link #journalCompaction(long)} for long ones.
+         * Tasks are journaled as they are added to the shared queue, so handlers adding tasks
+         * under work stealing do so as well.
+         */
+        public Builder<T, R> journal(Path file, TaskCodec<T> taskCodec, TaskCodec<R> resultCodec) {
+            this.journalFile = Objects.requireNonNull(file);
+            this.journalCodec = Objects.requireNonNull(taskCodec);
+            this.resultCodec = Objects.requireNonNull(resultCodec);
+            return this;
+        }
+
+        /**
+         * Size in bytes past which the {@link #journal(Path, TaskCodec, TaskCodec) journal} of a
+         * round still going gets compacted, dropping the tasks that have finished. It is compacted
+         * again once it has doubled since. 64 MiB by default.
+         */
+        public Builder<T, R> journalCompaction(long bytes) {
+            this.journalCompaction = bytes;
+            return this;
+        }
+
+        /**
+         * Syncs the {@link #journal(Path, TaskCodec, TaskCodec) journal} every so many milliseconds
+         * in the background instead, adding a task then returns as soon as it is buffered. Tasks
+         * added within the last interval before a crash are lost. Zero, the default, waits for
+         * the sync on every add.
+         */
+        public Builder<T, R> journalSyncInterval(long journalSyncInterval) {
+            this.journalSyncInterval = journalSyncInterval;
+            return this;
+        }
+
+        /**
+         * Records task counters and wait, service and end-to-end latencies into
+         * {@link WorkQueue#metrics()}. Off by default, as it costs a few clock reads per task.
+         */
+        public Builder<T, R> metrics(boolean metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Reports task events to the listener, which turns {@link #metrics(boolean) metrics} on.
+         */
+        public Builder<T, R> listener(WorkQueueListener listener) {
+            this.listener = Objects.requireNonNull(listener);
+            this.metrics = true;
+            return this;
+        }
+
+        public WorkQueue<T, R> build() {
+            return new WorkQueue<>(this);
+        }
     }
 
-    private synchronized void addResultToList(R result, Integer id) {
-        resultsRaw.add(new Pair<>(result, id));
+    // The queue side of a stream, which gives back the workers started for it
+    private final class StreamOwner implements ResultStream.Owner {
+        private final Round<R> round;
+        // Set as the workers start, which is before the stream is handed out
+        private volatile Dispatcher dispatcher;
+
+        StreamOwner(Round<R> round) {
+            this.round = round;
+        }
+
+        @Override
+        public boolean finishRound() {
+            return WorkQueue.this.finishRound(round);
+        }
+
+        @Override
+        public void release(boolean finished) {
+            if (!finished) {
+                abandonRound(round);
+            }
+            releaseDispatcher(dispatcher);
+        }
     }
 
-    private static class Pair<E> {
-        E element;
-        Integer id;
+    // What the task queue holds: a single task or a slice of a batch
+    private abstract class QueuedWork implements Runnable {
+        final Round<R> round;
+        final long addedAt;
+        // Set before the work is enqueued, ranks only on a prioritized queue
+        int lane;
+        long rank;
+        long sequence;
 
-        Pair(E element, Integer id) {
-            this.element = element;
+        QueuedWork(Round<R> round, long addedAt) {
+            this.round = round;
+            this.addedAt = addedAt;
+        }
+
+        abstract int size();
+
+        /**
+         * Called when the work is dropped from the queue without running.
+         */
+        void discard() {
+        }
+    }
+
+    // A single task, handed to the workers as is
+    private final class Task extends QueuedWork {
+        private final T task;
+        private final int id;
+        private final CompletableFuture<R> future;
+        private final int attempt;
+
+        Task(Round<R> round, T task, int id, long addedAt, CompletableFuture<R> future) {
+            this(round, task, id, addedAt, future, 1);
+        }
+
+        Task(Round<R> round, T task, int id, long addedAt, CompletableFuture<R> future, int attempt) {
+            super(round, addedAt);
+            this.task = task;
             this.id = id;
+            this.future = future;
+            this.attempt = attempt;
         }
 
-        Integer getId() {
+        @Override
+        int size() {
+            return 1;
+        }
+
+        @Override
+        void discard() {
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            runTask(this, task, id, attempt, future);
+        }
+    }
+
+    // A slice of a batch, the worker that takes it runs its tasks one after another
+    private final class Chunk extends QueuedWork {
+        private final Object[] batch;
+        private final int from;
+        private final int to;
+        private final int firstId;
+
+        Chunk(Round<R> round, Object[] batch, int from, int to, int firstId, long addedAt) {
+            super(round, addedAt);
+            this.batch = batch;
+            this.from = from;
+            this.to = to;
+            this.firstId = firstId;
+        }
+
+        @Override
+        int size() {
+            return to - from;
+        }
+
+        @SuppressWarnings("unchecked")
+        void split(Queue<Runnable> target) {
+            for (int i = from; i < to; ++i) {
+                target.add(new Task(round, (T) batch[i], firstId + i, addedAt, null));
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void run() {
+            Thread current = Thread.currentThread();
+            for (int i = from; i < to; ++i) {
+                try {
+                    runTask(this, (T) batch[i], firstId + i, 1, null);
+                } catch (RuntimeException | Error e) {
+                    // One failing handler must not cost the rest of the chunk
+                    current.getUncaughtExceptionHandler().uncaughtException(current, e);
+                }
+            }
+        }
+    }
+
+    // Lays plain tasks out off the heap. Tasks with a future or a retry count, and null
+    // tasks, are rare enough to stay objects.
+    private final class TaskEncoding implements OffHeapQueue.Codec {
+        @Override
+        public int encodedSize(Runnable work) {
+            if (work instanceof WorkQueue<?, ?>.Task task && task.future == null && task.attempt == 1 && task.task != null) {
+                @SuppressWarnings("unchecked")
+                T value = (T) task.task;
+                return ENCODED_HEADER + taskCodec.encodedSize(value);
+            }
+            return -1;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void encode(Runnable work, ByteBuffer target) {
+            Task task = (Task) work;
+            target.putLong(task.round.sequence).putInt(task.id).putLong(task.addedAt);
+            taskCodec.encode(task.task, target);
+        }
+
+        @Override
+        public Runnable decode(ByteBuffer source) {
+            long sequence = source.getLong();
+            int id = source.getInt();
+            long addedAt = source.getLong();
+            byte[] payload = new byte[source.remaining()];
+            source.get(payload);
+            Round<R> round = currentRound;
+            if (round.sequence != sequence) {
+                // Taken just as its round was abandoned, it only has to be counted off
+                round = new Round<>();
+                round.abandoned = true;
+            }
+            return new EncodedTask(round, id, addedAt, payload);
+        }
+    }
+
+    // A task taken off the heap, decoded by the worker that runs it
+    private final class EncodedTask extends QueuedWork {
+        private final int id;
+        private final byte[] payload;
+
+        EncodedTask(Round<R> round, int id, long addedAt, byte[] payload) {
+            super(round, addedAt);
+            this.id = id;
+            this.payload = payload;
+        }
+
+        @Override
+        int size() {
+            return 1;
+        }
+
+        @Override
+        public void run() {
+            T task;
+            try {
+                task = taskCodec.decode(ByteBuffer.wrap(payload));
+            } catch (RuntimeException | Error e) {
+                capacity.release(1);
+                finishTask(round, id, null, false, null, TaskResult.failed(e));
+                throw e;
+            }
+            runTask(this, task, id, 1, null);
+        }
+    }
+
+    // Tasks handled by a single call of the batch handler
+    private final class Batch extends QueuedWork {
+        private final List<Task> tasks = new ArrayList<>();
+        // Flushes the batch if it does not fill up in time, guarded by the monitor
+        private Future<?> linger;
+
+        Batch(Round<R> round) {
+            super(round, 0);
+        }
+
+        @Override
+        int size() {
+            return tasks.size();
+        }
+
+        @Override
+        void discard() {
+            tasks.forEach(Task::discard);
+        }
+
+        @Override
+        public void run() {
+            runBatch(this);
+        }
+    }
+
+    private static class Round<E> {
+        private static final AtomicLong SEQUENCE = new AtomicLong(0);
+
+        // Tells the rounds apart once their tasks are bytes
+        final long sequence = SEQUENCE.incrementAndGet();
+        final AtomicInteger totalTasks = new AtomicInteger(0);
+        final AtomicInteger pendingTasks = new AtomicInteger(0);
+        final ResultStore<E> results = new ResultStore<>();
+        final Set<TaskRun> runs = ConcurrentHashMap.newKeySet();
+        // Tasks waiting out a retry backoff
+        final Set<Runnable> retries = ConcurrentHashMap.newKeySet();
+        // Adders that do without the monitor, while they check whether the round is sealed
+        final AtomicInteger admitting = new AtomicInteger(0);
+        volatile boolean sealed;
+        volatile ResultSink<E> sink = results;
+        volatile CompletableFuture<List<E>> completion;
+        volatile boolean abandoned;
+
+        int nextId() {
+            int id = totalTasks.getAndIncrement();
+            results.reserve(id + 1);
             return id;
         }
+
+        /**
+         * Hands out {@code count} consecutive ids as pending tasks and returns the first one.
+         */
+        int reserveIds(int count) {
+            pendingTasks.addAndGet(count);
+            return nextIds(count);
+        }
+
+        int nextIds(int count) {
+            int firstId = totalTasks.getAndAdd(count);
+            results.reserve(firstId + count);
+            return firstId;
+        }
+
+        /**
+         * Counts the tasks in as pending unless the round is sealed for finishing. Either the
+         * round sees this adder when it is sealed, or the adder sees the round sealed.
+         */
+        boolean tryAdmit(int tasks) {
+            admitting.incrementAndGet();
+            try {
+                if (sealed) {
+                    return false;
+                }
+                pendingTasks.addAndGet(tasks);
+                return true;
+            } finally {
+                admitting.decrementAndGet();
+            }
+        }
+
+        void attach(ResultStream<E> stream) {
+            sink = stream;
+            for (int id = 0, size = totalTasks.get(); id < size; ++id) {
+                results.transfer(id, stream);
+            }
+        }
+
+        void complete(ResultSink<E> taskSink, int id, E result) {
+            taskSink.accept(id, result);
+            handOver(taskSink, id);
+        }
+
+        void fail(ResultSink<E> taskSink, int id, TaskResult<E> failure) {
+            taskSink.reject(id, failure);
+            handOver(taskSink, id);
+        }
+
+        // A stream may have been attached after the task picked its sink, in which
+        // case the outcome went to the store and has to follow the stream
+        private void handOver(ResultSink<E> taskSink, int id) {
+            ResultSink<E> current = sink;
+            if (taskSink == results && current != results) {
+                results.transfer(id, (ResultStream<E>) current);
+            }
+        }
     }
 }
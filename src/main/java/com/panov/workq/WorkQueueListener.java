@@ -0,0 +1,19 @@
+package com.panov.workq;
+
+/**
+ * Receives task events of a {@link WorkQueue}, e.g. to bridge them to a metrics library.
+ * <p>
+ * Callbacks run on the submitting and worker threads, they should be quick and must not throw.
+ */
+public interface WorkQueueListener {
+    default void onTasksAdded(int count) {
+    }
+
+    /**
+     * @param waitNanos    time the task spent queued
+     * @param serviceNanos time the handler took
+     * @param failed       whether the task finished without a result
+     */
+    default void onTaskFinished(long waitNanos, long serviceNanos, boolean failed) {
+    }
+}
@@ -0,0 +1,107 @@
+package com.panov.workq;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Counters, gauges and latency histograms of a {@link WorkQueue}.
+ * <p>
+ * Gauges are always live. Counters and histograms are only recorded when the queue
+ * is built with {@link WorkQueue.Builder#metrics(boolean) metrics} enabled.
+ */
+public class WorkQueueMetrics {
+    private final IntSupplier queueDepth;
+    private final IntSupplier workers;
+    private final WorkQueueListener listener;
+
+    private final LongAdder addedTasks = new LongAdder();
+    private final LongAdder completedTasks = new LongAdder();
+    private final LongAdder failedTasks = new LongAdder();
+    private final LongAdder busyWorkers = new LongAdder();
+    private final LatencyHistogram waitTime = new LatencyHistogram();
+    private final LatencyHistogram serviceTime = new LatencyHistogram();
+    private final LatencyHistogram endToEndTime = new LatencyHistogram();
+
+    WorkQueueMetrics(IntSupplier queueDepth, IntSupplier workers, WorkQueueListener listener) {
+        this.queueDepth = queueDepth;
+        this.workers = workers;
+        this.listener = listener;
+    }
+
+    /**
+     * Tasks added but not picked up by a worker yet.
+     */
+    public int queueDepth() {
+        return queueDepth.getAsInt();
+    }
+
+    /**
+     * Threads currently serving the queue.
+     */
+    public int workers() {
+        return workers.getAsInt();
+    }
+
+    /**
+     * Handlers running right now.
+     */
+    public int busyWorkers() {
+        return busyWorkers.intValue();
+    }
+
+    public long addedTasks() {
+        return addedTasks.sum();
+    }
+
+    public long completedTasks() {
+        return completedTasks.sum();
+    }
+
+    public long failedTasks() {
+        return failedTasks.sum();
+    }
+
+    /**
+     * From being added to being picked up by a worker.
+     */
+    public LatencyHistogram waitTime() {
+        return waitTime;
+    }
+
+    /**
+     * Time spent in the handler.
+     */
+    public LatencyHistogram serviceTime() {
+        return serviceTime;
+    }
+
+    /**
+     * From being added to the handler returning.
+     */
+    public LatencyHistogram endToEndTime() {
+        return endToEndTime;
+    }
+
+    void tasksAdded(int count) {
+        addedTasks.add(count);
+        listener.onTasksAdded(count);
+    }
+
+    // Kept up whether or not metrics are recorded, it takes no clock read.
+    // A batch keeps a single worker busy while it finishes many tasks.
+    void handlerStarted() {
+        busyWorkers.increment();
+    }
+
+    void handlerFinished() {
+        busyWorkers.decrement();
+    }
+
+    void taskRecorded(long waitNanos, long serviceNanos, boolean failed) {
+        (failed ? failedTasks : completedTasks).increment();
+        waitTime.record(waitNanos);
+        serviceTime.record(serviceNanos);
+        endToEndTime.record(waitNanos + serviceNanos);
+        listener.onTaskFinished(waitNanos, serviceNanos, failed);
+    }
+}
@@ -0,0 +1,86 @@
+package com.panov.workq;
+
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * Runs tasks on a {@link ForkJoinPool}. Tasks added from outside are moved from the
+ * task queue into the pool, while tasks that handlers add are pushed onto the deque
+ * of the worker running the handler, from where idle workers steal them.
+ */
+class WorkStealingDispatcher implements Dispatcher {
+    private final BlockingQueue<Runnable> queue;
+    private final ForkJoinPool pool;
+    private final Set<Thread> running;
+    private volatile boolean shutdown;
+
+    WorkStealingDispatcher(BlockingQueue<Runnable> queue, int parallelism) {
+        this.queue = queue;
+        this.pool = new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, false);
+        this.running = ConcurrentHashMap.newKeySet();
+    }
+
+    @Override
+    public void start() {
+        signal();
+    }
+
+    @Override
+    public void signal() {
+        Runnable task;
+        while ((task = queue.poll()) != null) {
+            Runnable next = task;
+            pool.execute(() -> runTask(next));
+        }
+    }
+
+    /**
+     * Whether the calling thread is one of this dispatcher's workers that can take
+     * tasks directly through {@link #submitLocal(Runnable)}, bypassing the task queue.
+     */
+    boolean acceptsLocalTasks() {
+        return Thread.currentThread() instanceof ForkJoinWorkerThread worker && worker.getPool() == pool;
+    }
+
+    void submitLocal(Runnable task) {
+        ForkJoinTask.adapt(() -> runTask(task)).fork();
+    }
+
+    // Lets the submitted tasks drain rather than dropping them, so the queue's bookkeeping sees them finish
+    @Override
+    public void shutdownNow() {
+        shutdown = true;
+        pool.shutdown();
+        running.forEach(Thread::interrupt);
+    }
+
+    @Override
+    public int size() {
+        return pool.getPoolSize();
+    }
+
+    long stealCount() {
+        return pool.getStealCount();
+    }
+
+    private void runTask(Runnable task) {
+        Thread current = Thread.currentThread();
+        running.add(current);
+        try {
+            if (shutdown) {
+                current.interrupt();
+            }
+            task.run();
+        } catch (RuntimeException | Error e) {
+            current.getUncaughtExceptionHandler().uncaughtException(current, e);
+        } finally {
+            running.remove(current);
+            // Do not let a cancellation leak into the next task of this worker
+            Thread.interrupted();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.panov.workq;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Elastic set of platform threads draining a shared task queue.
+ * <p>
+ * The pool grows towards {@code maxWorkers} whenever the backlog exceeds the
+ * number of idle workers and shrinks back to {@code minWorkers} once workers
+ * stay idle for {@code keepAliveTime} milliseconds.
+ */
+class WorkerPool implements Dispatcher {
+    private final BlockingQueue<Runnable> queue;
+    private final int minWorkers;
+    private final int maxWorkers;
+    private final long keepAliveTime;
+    private final ThreadFactory threadFactory;
+
+    private final Set<Thread> workers;
+    // Workers that are polling the queue or about to, including freshly started ones
+    private final AtomicInteger idleWorkers;
+    private volatile int workerCount;
+    private volatile boolean shutdown;
+
+    WorkerPool(BlockingQueue<Runnable> queue, int minWorkers, int maxWorkers, long keepAliveTime) {
+        this.queue = queue;
+        this.minWorkers = minWorkers;
+        this.maxWorkers = maxWorkers;
+        this.keepAliveTime = keepAliveTime;
+        this.threadFactory = Executors.defaultThreadFactory();
+        this.workers = new HashSet<>();
+        this.idleWorkers = new AtomicInteger(0);
+    }
+
+    @Override
+    public synchronized void start() {
+        int initial = Math.min(maxWorkers, Math.max(minWorkers, queue.size()));
+        while (workerCount < initial) {
+            addWorker();
+        }
+    }
+
+    @Override
+    public void signal() {
+        if (workerCount < maxWorkers && queue.size() > idleWorkers.get()) {
+            grow();
+        }
+    }
+
+    @Override
+    public synchronized void shutdownNow() {
+        shutdown = true;
+        workers.forEach(Thread::interrupt);
+    }
+
+    @Override
+    public int size() {
+        return workerCount;
+    }
+
+    private synchronized void grow() {
+        if (shutdown) {
+            return;
+        }
+        int wanted = Math.min(maxWorkers, workerCount + queue.size() - idleWorkers.get());
+        while (workerCount < wanted) {
+            addWorker();
+        }
+    }
+
+    private void addWorker() {
+        Thread worker = threadFactory.newThread(this::runWorker);
+        workers.add(worker);
+        workerCount = workers.size();
+        idleWorkers.incrementAndGet();
+        worker.start();
+    }
+
+    private void runWorker() {
+        Thread current = Thread.currentThread();
+        try {
+            while (!shutdown) {
+                Runnable task = queue.poll();
+                if (task == null) {
+                    task = awaitTask(current);
+                }
+                if (task == null) {
+                    return;
+                }
+                if (shutdown) {
+                    // Taken just as shutdownNow() came in, its interrupt was meant for the idle
+                    // wait. The task itself may already belong to the next pool's round.
+                    Thread.interrupted();
+                }
+                idleWorkers.decrementAndGet();
+                try {
+                    task.run();
+                } catch (RuntimeException | Error e) {
+                    current.getUncaughtExceptionHandler().uncaughtException(current, e);
+                } finally {
+                    idleWorkers.incrementAndGet();
+                }
+            }
+        } finally {
+            // A retired worker has already left both the set and the idle count
+            synchronized (this) {
+                if (workers.remove(current)) {
+                    workerCount = workers.size();
+                    idleWorkers.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    private Runnable awaitTask(Thread current) {
+        while (!shutdown) {
+            try {
+                Runnable task = queue.poll(keepAliveTime, TimeUnit.MILLISECONDS);
+                if (task != null || retire(current)) {
+                    return task;
+                }
+            } catch (InterruptedException e) {
+                // Either shutdownNow() or an interrupt leaked by a handler, the loop re-checks which one
+            }
+        }
+        return null;
+    }
+
+    private synchronized boolean retire(Thread current) {
+        if (workers.size() <= minWorkers) {
+            return false;
+        }
+        // Leave the idle count first, so a producer enqueueing right now either
+        // sees this worker gone and grows the pool, or is seen by the check below
+        idleWorkers.decrementAndGet();
+        if (!queue.isEmpty()) {
+            idleWorkers.incrementAndGet();
+            return false;
+        }
+        workers.remove(current);
+        workerCount = workers.size();
+        return true;
+    }
+}
@@ -0,0 +1,91 @@
+package com.panov.workq;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class JournalTest {
+
+    @Test
+    @DisplayName("Drops a record torn by a crash and whatever follows it")
+    void dropsTornRecords(@TempDir Path directory) throws Exception {
+        // given
+        Path file = directory.resolve("journal");
+        var journal = new Journal(file, Long.MAX_VALUE);
+        journal.replay(1, (type, id, value) -> {
+        });
+        journal.append(1, Journal.SUBMITTED, 0, new byte[]{1});
+        journal.awaitDurable(journal.append(1, Journal.SUBMITTED, 1, new byte[]{2}));
+        journal.close();
+        long intact = Files.size(file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(intact - 1);
+        }
+        // when
+        List<Integer> replayed = new ArrayList<>();
+        var underTest = new Journal(file, Long.MAX_VALUE);
+        underTest.replay(2, (type, id, value) -> replayed.add(id));
+        underTest.close();
+        // then
+        assertThat(replayed).containsExactly(0);
+        assertThat(Files.size(file)).isLessThan(intact - 1);
+    }
+
+    @Test
+    @DisplayName("Writes out buffered records without being closed")
+    void writesOut(@TempDir Path directory) {
+        // given
+        Path file = directory.resolve("journal");
+        var underTest = new Journal(file, Long.MAX_VALUE);
+        underTest.replay(1, (type, id, value) -> {
+        });
+        underTest.awaitDurable(underTest.append(1, Journal.SUBMITTED, 0, new byte[]{1}));
+        underTest.append(1, Journal.COMPLETED, 0, new byte[]{2});
+        // when
+        underTest.writeOut();
+        // then
+        List<Byte> replayed = new ArrayList<>();
+        var reopened = new Journal(file, Long.MAX_VALUE);
+        reopened.replay(2, (type, id, value) -> replayed.add(type));
+        reopened.close();
+        underTest.close();
+        assertThat(replayed).containsExactly(Journal.SUBMITTED, Journal.COMPLETED);
+    }
+
+    @Test
+    @DisplayName("Compacts away the submissions of finished tasks")
+    void compacts(@TempDir Path directory) {
+        // given
+        Path file = directory.resolve("journal");
+        var underTest = new Journal(file, 1024);
+        underTest.replay(1, (type, id, value) -> {
+        });
+        // when
+        for (int id = 0; id < 100; ++id) {
+            underTest.awaitDurable(underTest.append(1, Journal.SUBMITTED, id, new byte[64]));
+            if (id < 90) {
+                underTest.append(1, Journal.COMPLETED, id, null);
+            }
+        }
+        underTest.close();
+        // then
+        List<Integer> submitted = new ArrayList<>();
+        var replayed = new Journal(file, 1024);
+        replayed.replay(2, (type, id, value) -> {
+            if (type == Journal.SUBMITTED) {
+                submitted.add(id);
+            }
+        });
+        replayed.close();
+        assertThat(submitted).hasSizeLessThan(50).contains(90, 95, 99);
+    }
+}
@@ -0,0 +1,52 @@
+package com.panov.workq;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    @DisplayName("Counts small values exactly")
+    void countsSmallValuesExactly() {
+        // given
+        var underTest = new LatencyHistogram();
+        // when
+        for (int value = 1; value <= 10; ++value) {
+            underTest.record(value);
+        }
+        // then
+        assertThat(underTest.count()).isEqualTo(10);
+        assertThat(underTest.percentile(50)).isEqualTo(5);
+        assertThat(underTest.percentile(100)).isEqualTo(10);
+        assertThat(underTest.mean()).isEqualTo(5.5);
+    }
+
+    @Test
+    @DisplayName("Keeps percentiles of large values within a few percent")
+    void keepsRelativePrecision() {
+        // given
+        var underTest = new LatencyHistogram();
+        // when
+        for (long value = 1; value <= 100_000; ++value) {
+            underTest.record(value * 1000);
+        }
+        // then
+        assertThat(underTest.percentile(50)).isCloseTo(50_000_000L, withinPercentage(4));
+        assertThat(underTest.percentile(99)).isCloseTo(99_000_000L, withinPercentage(4));
+        assertThat(underTest.max()).isEqualTo(100_000_000L);
+    }
+
+    @Test
+    @DisplayName("Maps every value to a bucket that covers it")
+    void bucketsCoverTheirValues() {
+        for (long value : new long[]{0, 63, 64, 65, 127, 128, 1_000_003, Long.MAX_VALUE}) {
+            int index = LatencyHistogram.indexOf(value);
+            assertThat(LatencyHistogram.highestValueAt(index)).isGreaterThanOrEqualTo(value);
+            if (index > 0) {
+                assertThat(LatencyHistogram.highestValueAt(index - 1)).isLessThan(value);
+            }
+        }
+    }
+}
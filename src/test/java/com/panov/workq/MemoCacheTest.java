@@ -0,0 +1,47 @@
+package com.panov.workq;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class MemoCacheTest {
+
+    @Test
+    @DisplayName("Evicts entries that were not hit since the last sweep first")
+    void evictsByWeight() throws InterruptedException {
+        // given
+        AtomicInteger loads = new AtomicInteger(0);
+        var underTest = new MemoCache<String, String>(4, 0, (key, value) -> value.length());
+        underTest.get("a", key -> { loads.incrementAndGet(); return "aa"; });
+        underTest.get("b", key -> { loads.incrementAndGet(); return "bb"; });
+        underTest.get("a", key -> { loads.incrementAndGet(); return "aa"; });
+        // when
+        underTest.get("c", key -> { loads.incrementAndGet(); return "cc"; });
+        // then
+        assertThat(underTest.size()).isEqualTo(2);
+        underTest.get("a", key -> { loads.incrementAndGet(); return "aa"; });
+        assertThat(loads.get()).isEqualTo(3);
+        underTest.get("b", key -> { loads.incrementAndGet(); return "bb"; });
+        assertThat(loads.get()).isEqualTo(4);
+    }
+
+    @Test
+    @DisplayName("Loads an entry again once it expires")
+    void expiresEntries() throws InterruptedException {
+        // given
+        AtomicInteger loads = new AtomicInteger(0);
+        var underTest = new MemoCache<Integer, Integer>(10, TimeUnit.MILLISECONDS.toNanos(30), (key, value) -> 1);
+        underTest.get(1, key -> loads.incrementAndGet());
+        underTest.get(1, key -> loads.incrementAndGet());
+        // when
+        Thread.sleep(60);
+        int value = underTest.get(1, key -> loads.incrementAndGet());
+        // then
+        assertThat(value).isEqualTo(2);
+        assertThat(underTest.size()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,75 @@
+package com.panov.workq;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class OffHeapQueueTest {
+    private static final OffHeapQueue.Codec CODEC = new OffHeapQueue.Codec() {
+        @Override
+        public int encodedSize(Runnable work) {
+            return work instanceof Item item && item.value >= 0 ? Integer.BYTES : -1;
+        }
+
+        @Override
+        public void encode(Runnable work, ByteBuffer target) {
+            target.putInt(((Item) work).value);
+        }
+
+        @Override
+        public Runnable decode(ByteBuffer source) {
+            return new Item(source.getInt());
+        }
+    };
+
+    @Test
+    @DisplayName("Keeps FIFO order across segments and work left on the heap")
+    void keepsOrder() {
+        // given
+        var underTest = new OffHeapQueue(CODEC, 64);
+        Item onHeap = new Item(-1);
+        for (int i = 0; i < 50; ++i) {
+            underTest.add(i == 25 ? onHeap : new Item(i));
+        }
+        // when
+        List<Runnable> taken = new ArrayList<>();
+        Runnable work;
+        while ((work = underTest.poll()) != null) {
+            taken.add(work);
+        }
+        // then
+        assertThat(taken).hasSize(50);
+        assertThat(taken.get(25)).isSameAs(onHeap);
+        assertThat(taken.get(49)).isEqualTo(new Item(49));
+        assertThat(underTest).isEmpty();
+    }
+
+    @Test
+    @DisplayName("Stays usable while drained and refilled")
+    void reusesSegments() {
+        // given
+        var underTest = new OffHeapQueue(CODEC, 64);
+        // when
+        // then
+        for (int round = 0; round < 10; ++round) {
+            for (int i = 0; i < 30; ++i) {
+                underTest.add(new Item(round * 100 + i));
+            }
+            assertThat(underTest.peek()).isEqualTo(new Item(round * 100));
+            List<Runnable> drained = new ArrayList<>();
+            assertThat(underTest.drainTo(drained)).isEqualTo(30);
+            assertThat(drained.get(29)).isEqualTo(new Item(round * 100 + 29));
+        }
+    }
+
+    private record Item(int value) implements Runnable {
+        @Override
+        public void run() {
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.panov.workq;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class PrimitiveWorkQueueTest {
+
+    @Test
+    @DisplayName("Runs a big amount of int tasks in submission order")
+    void runsBigAmountOfIntTasks() throws InterruptedException {
+        // given
+        int size = 100_000;
+        var underTest = new IntWorkQueue((i, wq) -> i * 2, size, 4, 10_000);
+        for (int i = 0; i < size / 2; ++i) {
+            underTest.add(i);
+        }
+        underTest.addAll(IntStream.range(size / 2, size).toArray());
+        // when
+        int[] results = underTest.execute();
+        // then
+        assertThat(results).isEqualTo(IntStream.range(0, size).map(i -> i * 2).toArray());
+    }
+
+    @Test
+    @DisplayName("Runs long subtasks that handlers add")
+    void runsLongSubtasks() throws InterruptedException {
+        // given
+        var underTest = new LongWorkQueue((n, wq) -> {
+            if (n > 1) {
+                wq.add(n / 2);
+                wq.add(n - n / 2);
+            }
+            return n;
+        }, Integer.MAX_VALUE, 4, 10_000);
+        underTest.add(1024);
+        // when
+        long[] results = underTest.execute();
+        // then
+        assertThat(results).hasSize(2047);
+        assertThat(LongStream.of(results).filter(n -> n == 1).count()).isEqualTo(1024);
+    }
+
+    @Test
+    @DisplayName("Skips double tasks whose handler throws")
+    void skipsFailedDoubleTasks() throws InterruptedException {
+        // given
+        var underTest = new DoubleWorkQueue((x, wq) -> {
+            if (x < 0) {
+                throw new IllegalArgumentException("negative");
+            }
+            return Math.sqrt(x);
+        }, 10_000, 2, 10_000);
+        for (int i = -1; i < 2000; ++i) {
+            underTest.add(i % 500 == 0 ? -i : i);
+        }
+        // when
+        double[] results = underTest.execute();
+        // then
+        assertThat(results).hasSize(2001 - 4);
+        assertThat(results[0]).isZero();
+        assertThat(results[1]).isEqualTo(1.0);
+    }
+
+    @Test
+    @DisplayName("Starts every round with an empty result list")
+    void isolatesRounds() throws InterruptedException {
+        // given
+        var underTest = new IntWorkQueue((i, wq) -> i, 10, 2, 1000);
+        underTest.addAll(1, 2, 3);
+        underTest.execute();
+        // when
+        underTest.add(4);
+        int[] results = underTest.execute();
+        // then
+        assertThat(results).containsExactly(4);
+    }
+
+    @Test
+    @DisplayName("Does not work longer than timeout and recovers afterwards")
+    void doesNotWorkLongerThanTimeout() throws InterruptedException {
+        // given
+        var underTest = new IntWorkQueue((i, wq) -> {
+            try {
+                Thread.sleep(i);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return i;
+        }, 10, 1, 200);
+        underTest.addAll(10, 5_000, 10);
+        // when
+        assertThatThrownBy(underTest::execute)
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessage("Process has been executing too long");
+        underTest.add(1);
+        // then
+        assertThat(underTest.execute()).containsExactly(1);
+    }
+
+    @Test
+    @DisplayName("Throws if tasks limit is exceeded")
+    void hasTasksLimit() {
+        // given
+        var underTest = new IntWorkQueue((i, wq) -> i, 2, 1, 1000);
+        underTest.addAll(1, 2);
+        // when
+        // then
+        assertThatThrownBy(() -> underTest.add(3))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessage("Tasks queue limit is reached");
+    }
+}
@@ -0,0 +1,85 @@
+package com.panov.workq;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class ResultStoreTest {
+
+    @Test
+    @DisplayName("Returns results in id order regardless of completion order")
+    void returnsResultsInIdOrder() {
+        // given
+        var underTest = new ResultStore<String>();
+        underTest.reserve(3);
+        // when
+        underTest.set(2, "c");
+        underTest.set(0, "a");
+        underTest.set(1, "b");
+        // then
+        assertThat(underTest.toList(3)).containsExactly("a", "b", "c");
+    }
+
+    @Test
+    @DisplayName("Grows across segments")
+    void growsAcrossSegments() {
+        // given
+        int size = 5000;
+        var underTest = new ResultStore<Integer>();
+        // when
+        for (int id = 0; id < size; ++id) {
+            underTest.reserve(id + 1);
+        }
+        for (int id = size - 1; id >= 0; --id) {
+            underTest.set(id, id * 2);
+        }
+        // then
+        assertThat(underTest.toList(size))
+                .isEqualTo(IntStream.range(0, size).map(id -> id * 2).boxed().toList());
+    }
+
+    @Test
+    @DisplayName("Keeps null results and skips slots without a result")
+    void distinguishesNullFromMissingResults() {
+        // given
+        var underTest = new ResultStore<String>();
+        underTest.reserve(4);
+        // when
+        underTest.set(0, "a");
+        underTest.set(1, null);
+        underTest.set(3, "d");
+        // then
+        assertThat(underTest.toList(4)).isEqualTo(Arrays.asList("a", null, "d"));
+    }
+
+    @Test
+    @DisplayName("Accepts results from many threads at once")
+    void acceptsConcurrentWrites() throws InterruptedException {
+        // given
+        int size = 100_000;
+        int writers = 8;
+        var underTest = new ResultStore<Integer>();
+        underTest.reserve(size);
+        List<Thread> threads = new ArrayList<>();
+        // when
+        for (int w = 0; w < writers; ++w) {
+            int offset = w;
+            threads.add(Thread.ofPlatform().start(() -> {
+                for (int id = offset; id < size; id += writers) {
+                    underTest.set(id, id);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // then
+        assertThat(underTest.toList(size)).isEqualTo(IntStream.range(0, size).boxed().toList());
+    }
+}
@@ -0,0 +1,36 @@
+package com.panov.workq;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class RetryPolicyTest {
+
+    @Test
+    @DisplayName("Grows the backoff exponentially up to the cap")
+    void growsBackoff() {
+        // given
+        var underTest = RetryPolicy.builder().backoff(10, 50).multiplier(2).jitter(0).build();
+        // when
+        // then
+        assertThat(underTest.backoff(1)).isEqualTo(10);
+        assertThat(underTest.backoff(2)).isEqualTo(20);
+        assertThat(underTest.backoff(3)).isEqualTo(40);
+        assertThat(underTest.backoff(4)).isEqualTo(50);
+    }
+
+    @Test
+    @DisplayName("Cuts at most the jitter share off the backoff")
+    void appliesJitter() {
+        // given
+        var underTest = RetryPolicy.builder().backoff(100, 100).jitter(0.25).build();
+        // when
+        // then
+        for (int i = 0; i < 100; ++i) {
+            assertThat(underTest.backoff(1)).isBetween(75L, 100L);
+        }
+        assertThatThrownBy(() -> RetryPolicy.builder().jitter(2).build())
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
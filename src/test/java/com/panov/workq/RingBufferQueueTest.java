@@ -0,0 +1,123 @@
+package com.panov.workq;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class RingBufferQueueTest {
+
+    @Test
+    @DisplayName("Keeps FIFO order when the ring overflows")
+    void keepsOrderOnOverflow() {
+        // given
+        var underTest = new RingBufferQueue(4, WaitStrategy.BUSY_SPIN);
+        List<Runnable> added = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            Runnable work = new Item(i);
+            added.add(work);
+            underTest.add(work);
+        }
+        // when
+        List<Runnable> taken = new ArrayList<>();
+        underTest.drainTo(taken, 3);
+        Runnable late = new Item(10);
+        underTest.add(late);
+        underTest.drainTo(taken);
+        // then
+        added.add(late);
+        assertThat(taken).containsExactlyElementsOf(added);
+        assertThat(underTest).isEmpty();
+    }
+
+    @Test
+    @DisplayName("Hands every task to exactly one of many consumers")
+    void handsOutEveryTaskOnce() throws InterruptedException {
+        // given
+        var underTest = new RingBufferQueue(256, WaitStrategy.PARKING);
+        int producers = 4;
+        int perProducer = 50_000;
+        Set<Runnable> taken = ConcurrentHashMap.newKeySet();
+        CountDownLatch done = new CountDownLatch(producers * perProducer);
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < 4; ++c) {
+            threads.add(Thread.ofPlatform().start(() -> {
+                try {
+                    while (true) {
+                        assertThat(taken.add(underTest.take())).isTrue();
+                        done.countDown();
+                    }
+                } catch (InterruptedException e) {
+                    // Done
+                }
+            }));
+        }
+        // when
+        for (int p = 0; p < producers; ++p) {
+            threads.add(Thread.ofPlatform().start(() -> {
+                for (int i = 0; i < perProducer; ++i) {
+                    underTest.add(new Item(i));
+                }
+            }));
+        }
+        boolean finished = done.await(10, TimeUnit.SECONDS);
+        threads.forEach(Thread::interrupt);
+        // then
+        assertThat(finished).isTrue();
+        assertThat(taken).hasSize(producers * perProducer);
+        assertThat(underTest.poll()).isNull();
+    }
+
+    @Test
+    @DisplayName("Blocks an idle taker until a task comes in")
+    void blocksIdleTakers() throws InterruptedException {
+        // given
+        var underTest = new RingBufferQueue(4, WaitStrategy.BLOCKING);
+        List<Runnable> taken = new ArrayList<>();
+        Thread taker = Thread.ofPlatform().start(() -> {
+            try {
+                taken.add(underTest.take());
+            } catch (InterruptedException e) {
+                // Failed below
+            }
+        });
+        long deadline = System.currentTimeMillis() + 5000;
+        while (taker.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        // when
+        Thread.State idle = taker.getState();
+        Runnable work = new Item(0);
+        underTest.add(work);
+        taker.join(5000);
+        // then
+        assertThat(idle).isEqualTo(Thread.State.WAITING);
+        assertThat(taken).containsExactly(work);
+        assertThat(underTest.poll(1, TimeUnit.MILLISECONDS)).isNull();
+    }
+
+    // Compares by identity, every task added is another one
+    private static final class Item implements Runnable {
+        private final int value;
+
+        Item(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public void run() {
+        }
+
+        @Override
+        public String toString() {
+            return "Item " + value;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.panov.workq;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class SpillingQueueTest {
+    private static final OffHeapQueue.Codec CODEC = new OffHeapQueue.Codec() {
+        @Override
+        public int encodedSize(Runnable work) {
+            return Integer.BYTES;
+        }
+
+        @Override
+        public void encode(Runnable work, ByteBuffer target) {
+            target.putInt(((Item) work).value);
+        }
+
+        @Override
+        public Runnable decode(ByteBuffer source) {
+            return new Item(source.getInt());
+        }
+    };
+
+    @Test
+    @DisplayName("Keeps new work behind spilled work until the spill drains")
+    void keepsOrder(@TempDir Path directory) {
+        // given
+        var underTest = new SpillingQueue(3, new OffHeapQueue(CODEC, 64, new SpillFiles(directory)));
+        for (int i = 0; i < 20; ++i) {
+            underTest.add(new Item(i));
+        }
+        // when
+        List<Runnable> taken = new ArrayList<>();
+        for (int i = 0; i < 5; ++i) {
+            taken.add(underTest.poll());
+        }
+        underTest.add(new Item(20));
+        Runnable work;
+        while ((work = underTest.poll()) != null) {
+            taken.add(work);
+        }
+        underTest.add(new Item(21));
+        // then
+        assertThat(taken).extracting(item -> ((Item) item).value)
+                .containsExactlyElementsOf(IntStream.rangeClosed(0, 20).boxed().toList());
+        assertThat(underTest.size()).isEqualTo(1);
+        underTest.release();
+    }
+
+    private record Item(int value) implements Runnable {
+        @Override
+        public void run() {
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.panov.workq;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class StripedCapacityTest {
+
+    @Test
+    @DisplayName("Hands out exactly the limit to a single producer, whatever stripes hold")
+    void reachesLimit() throws InterruptedException {
+        // given
+        var underTest = new StripedCapacity(100, 4);
+        Thread other = Thread.ofPlatform().start(() -> {
+            assertThat(underTest.tryAcquire(1)).isTrue();
+            underTest.release(1);
+        });
+        other.join();
+        // when
+        int acquired = 0;
+        while (underTest.tryAcquire(1)) {
+            ++acquired;
+        }
+        // then
+        assertThat(acquired).isEqualTo(100);
+        assertThat(underTest.size()).isEqualTo(100);
+    }
+
+    @Test
+    @DisplayName("Returns permits released by workers to the shared pool")
+    void releasesIntoPool() throws InterruptedException {
+        // given
+        var underTest = new StripedCapacity(1000, 4);
+        assertThat(underTest.tryAcquire(10)).isTrue();
+        long pooled = underTest.pooled();
+        // when
+        Thread worker = Thread.ofPlatform().start(() -> underTest.release(10));
+        worker.join();
+        // then
+        assertThat(underTest.pooled()).isEqualTo(pooled + 10);
+        assertThat(underTest.size()).isZero();
+    }
+
+    @Test
+    @DisplayName("Never lets concurrent producers past the limit")
+    void neverExceedsLimit() throws InterruptedException {
+        // given
+        var underTest = new StripedCapacity(10, 8);
+        AtomicInteger inUse = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(8);
+        // when
+        for (int t = 0; t < 8; ++t) {
+            Thread.ofPlatform().start(() -> {
+                for (int i = 0; i < 100_000; ++i) {
+                    if (underTest.tryAcquire(3)) {
+                        peak.accumulateAndGet(inUse.addAndGet(3), Math::max);
+                        inUse.addAndGet(-3);
+                        underTest.release(3);
+                    }
+                }
+                done.countDown();
+            });
+        }
+        done.await();
+        // then
+        assertThat(peak.get()).isLessThanOrEqualTo(10);
+        assertThat(underTest.size()).isZero();
+    }
+}
@@ -3,9 +3,27 @@ package com.panov.workq;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiFunction;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
 
 import static org.assertj.core.api.Assertions.*;
 
@@ -116,12 +134,9 @@ public class WorkQueueTest {
         String task2 = "task2";
         String task3 = "task3";
         String task4 = "task4";
+        var concurrency = new ConcurrencyProbe();
         BiFunction<String, WorkQueue<String, String>, String> handler = (t, wq) -> {
-            try {
-                Thread.sleep(2000);
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
-            }
+            concurrency.run(500);
             return t;
         };
         var underTest = new WorkQueue<>(handler, 10, 2, 10000);
@@ -129,10 +144,103 @@ public class WorkQueueTest {
         underTest.addAll(List.of(task1, task2, task3, task4));
         underTest.execute();
         // then
-        Thread.sleep(1000);
-        assertThat(Thread.activeCount()).isEqualTo(2);
-        Thread.sleep(2000);
-        assertThat(Thread.activeCount()).isEqualTo(2);
+        assertThat(concurrency.peak()).isEqualTo(2);
+        assertThat(underTest.workerCount()).isZero();
+    }
+
+    @Test
+    @DisplayName("Scales up to MAX_WORKERS_NUM when there is a backlog")
+    void scalesUpToMaxWorkers() throws InterruptedException {
+        // given
+        List<Integer> tasks = new ArrayList<>();
+        for (int i = 0; i < 64; ++i) {
+            tasks.add(i);
+        }
+        var concurrency = new ConcurrencyProbe();
+        BiFunction<Integer, WorkQueue<Integer, Integer>, Integer> handler = (t, wq) -> {
+            concurrency.run(50);
+            return t;
+        };
+        var underTest = WorkQueue.builder(handler)
+                .minWorkers(1)
+                .maxWorkers(16)
+                .executionTimeout(10000)
+                .build();
+        // when
+        underTest.addAll(tasks);
+        var results = underTest.execute();
+        // then
+        assertThat(results).isEqualTo(tasks);
+        assertThat(concurrency.peak()).isEqualTo(16);
+    }
+
+    @Test
+    @DisplayName("Ramps up workers when handlers grow the backlog")
+    void rampsUpWhenBacklogGrows() throws InterruptedException {
+        // given
+        var concurrency = new ConcurrencyProbe();
+        BiFunction<Integer, WorkQueue<Integer, Integer>, Integer> handler = (t, wq) -> {
+            if (t == 0) {
+                List<Integer> subtasks = new ArrayList<>();
+                for (int i = 1; i <= 24; ++i) {
+                    subtasks.add(i);
+                }
+                wq.addAll(subtasks);
+                return t;
+            }
+            concurrency.run(50);
+            return t;
+        };
+        var underTest = WorkQueue.builder(handler)
+                .minWorkers(1)
+                .maxWorkers(6)
+                .executionTimeout(10000)
+                .build();
+        // when
+        underTest.add(0);
+        var results = underTest.execute();
+        // then
+        assertThat(results).hasSize(25);
+        assertThat(concurrency.peak()).isEqualTo(6);
+    }
+
+    @Test
+    @DisplayName("Shrinks back to MIN_WORKERS after workers stay idle for KEEP_ALIVE_TIME")
+    void shrinksIdleWorkers() throws InterruptedException {
+        // given
+        var observedWorkers = new AtomicInteger(-1);
+        BiFunction<Integer, WorkQueue<Integer, Integer>, Integer> handler = (t, wq) -> {
+            if (t == 0) {
+                wq.addAll(List.of(1, 2, 3));
+                sleep(500);
+                observedWorkers.set(wq.workerCount());
+            }
+            return t;
+        };
+        var underTest = WorkQueue.builder(handler)
+                .minWorkers(1)
+                .maxWorkers(4)
+                .keepAliveTime(50)
+                .executionTimeout(10000)
+                .build();
+        // when
+        underTest.add(0);
+        var results = underTest.execute();
+        // then
+        assertThat(results).isEqualTo(List.of(0, 1, 2, 3));
+        assertThat(observedWorkers.get()).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("Rejects invalid workers configuration")
+    void rejectsInvalidWorkersRange() {
+        BiFunction<String, WorkQueue<String, String>, String> handler = (t, wq) -> t;
+        assertThatThrownBy(
+                () -> WorkQueue.builder(handler).minWorkers(4).maxWorkers(2).build()
+        ).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(
+                () -> new WorkQueue<>(handler, 10, 0, 1000)
+        ).isInstanceOf(IllegalArgumentException.class);
     }
 
     @Test
@@ -225,4 +333,1546 @@ public class WorkQueueTest {
         // then
         assertThatThrownBy(notEnoughWorkers::execute).isInstanceOf(IllegalStateException.class);
     }
+
+    @Test
+    @DisplayName("Keeps workers alive between rounds of a persistent queue")
+    void reusesWorkersAcrossRounds() throws InterruptedException {
+        // given
+        Set<Thread> firstRoundThreads = ConcurrentHashMap.newKeySet();
+        Set<Thread> secondRoundThreads = ConcurrentHashMap.newKeySet();
+        BiFunction<Integer, WorkQueue<Integer, Integer>, Integer> handler = (t, wq) -> {
+            (t < 100 ? firstRoundThreads : secondRoundThreads).add(Thread.currentThread());
+            sleep(10);
+            return t;
+        };
+        try (var underTest = WorkQueue.builder(handler)
+                .minWorkers(2)
+                .maxWorkers(2)
+                .persistent(true)
+                .executionTimeout(5000)
+                .build()) {
+            // when
+            underTest.addAll(List.of(1, 2, 3, 4));
+            var firstResults = underTest.execute();
+            underTest.addAll(List.of(101, 102, 103, 104));
+            var secondResults = underTest.execute();
+            // then
+            assertThat(firstResults).isEqualTo(List.of(1, 2, 3, 4));
+            assertThat(secondResults).isEqualTo(List.of(101, 102, 103, 104));
+            assertThat(firstRoundThreads).hasSize(2);
+            assertThat(secondRoundThreads).isEqualTo(firstRoundThreads);
+            assertThat(firstRoundThreads).allMatch(Thread::isAlive);
+        }
+    }
+
+    @Test
+    @DisplayName("Isolates results of consecutive rounds")
+    void isolatesRoundResults() throws InterruptedException {
+        // given
+        BiFunction<String, WorkQueue<String, String>, String> handler = (t, wq) -> t;
+        var underTest = new WorkQueue<>(handler, 10, 2, 1000);
+        // when
+        underTest.addAll(List.of("a", "b"));
+        var firstResults = underTest.execute();
+        underTest.add("c");
+        var secondResults = underTest.execute();
+        var emptyResults = underTest.execute();
+        // then
+        assertThat(firstResults).isEqualTo(List.of("a", "b"));
+        assertThat(secondResults).isEqualTo(List.of("c"));
+        assertThat(emptyResults).isEmpty();
+    }
+
+    @Test
+    @DisplayName("Shrinks a persistent queue to MIN_WORKERS between rounds")
+    void persistentQueueShrinksBetweenRounds() throws InterruptedException {
+        // given
+        BiFunction<Integer, WorkQueue<Integer, Integer>, Integer> handler = (t, wq) -> {
+            sleep(20);
+            return t;
+        };
+        try (var underTest = WorkQueue.builder(handler)
+                .minWorkers(1)
+                .maxWorkers(4)
+                .keepAliveTime(50)
+                .persistent(true)
+                .executionTimeout(5000)
+                .build()) {
+            // when
+            underTest.addAll(List.of(1, 2, 3, 4, 5, 6, 7, 8));
+            underTest.execute();
+            sleep(300);
+            // then
+            assertThat(underTest.workerCount()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    @DisplayName("Rejects tasks once closed")
+    void rejectsTasksAfterClose() throws InterruptedException {
+        // given
+        BiFunction<String, WorkQueue<String, String>, String> handler = (t, wq) -> t;
+        var underTest = WorkQueue.builder(handler).persistent(true).build();
+        underTest.add("a");
+        underTest.execute();
+        // when
+        underTest.close();
+        underTest.close();
+        // then
+        assertThatThrownBy(() -> underTest.add("b"))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessage("WorkQueue is closed");
+        assertThatThrownBy(underTest::execute).isInstanceOf(IllegalStateException.class);
+        sleep(100);
+        assertThat(underTest.workerCount()).isZero();
+    }
+
+    @Test
+    @DisplayName("Runs blocking tasks on virtual threads")
+    void runsTasksOnVirtualThreads() throws InterruptedException {
+        // given
+        List<Integer> tasks = new ArrayList<>();
+        for (int i = 0; i < 10000; ++i) {
+            tasks.add(i);
+        }
+        var onVirtualThread = new AtomicInteger();
+        BiFunction<Integer, WorkQueue<Integer, Integer>, Integer> handler = (t, wq) -> {
+            if (Thread.currentThread().isVirtual()) {
+                onVirtualThread.incrementAndGet();
+            }
+            sleep(200);
+            return t;
+        };
+        var underTest = WorkQueue.builder(handler)
+                .executionMode(ExecutionMode.VIRTUAL_THREADS)
+                .maxWorkers(10000)
+                .executionTimeout(5000)
+                .build();
+        // when
+        underTest.addAll(tasks);
+        var results = underTest.execute();
+        // then
+        assertThat(results).isEqualTo(tasks);
+        assertThat(onVirtualThread.get()).isEqualTo(tasks.size());
+    }
+
+    @Test
+    @DisplayName("Does not run more virtual threads simultaneously than MAX_WORKERS_NUM")
+    void capsVirtualThreads() throws InterruptedException {
+        // given
+        var concurrency = new ConcurrencyProbe();
+        BiFunction<Integer, WorkQueue<Integer, Integer>, Integer> handler = (t, wq) -> {
+            if (t == 0) {
+                wq.addAll(List.of(1, 2, 3, 4, 5, 6, 7, 8, 9, 10));
+            }
+            concurrency.run(50);
+            return t;
+        };
+        try (var underTest = WorkQueue.builder(handler)
+                .executionMode(ExecutionMode.VIRTUAL_THREADS)
+                .maxWorkers(3)
+                .persistent(true)
+                .executionTimeout(5000)
+                .build()) {
+            // when
+            underTest.add(0);
+            var results = underTest.execute();
+            // then
+            assertThat(results).isEqualTo(List.of(0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10));
+            assertThat(concurrency.peak()).isEqualTo(3);
+        }
+    }
+
+    @Test
+    @DisplayName("Keeps a released virtual thread dispatcher off the next round's tasks")
+    void isolatesVirtualThreadRounds() throws InterruptedException {
+        // given
+        BiFunction<Integer, WorkQueue<Integer, Integer>, Integer> handler = (t, wq) -> {
+            sleep(1);
+            return t;
+        };
+        var underTest = WorkQueue.builder(handler)
+                .executionMode(ExecutionMode.VIRTUAL_THREADS)
+                .maxWorkers(2)
+                .executionTimeout(5000)
+                .build();
+        // when
+        int shortRounds = 0;
+        for (int round = 0; round < 200; ++round) {
+            underTest.addAll(List.of(1, 2, 3));
+            if (underTest.execute().size() != 3) {
+                ++shortRounds;
+            }
+        }
+        // then
+        assertThat(shortRounds).isZero();
+    }
+
+    @Test
+    @DisplayName("Streams results in completion order")
+    void streamsResultsInCompletionOrder() {
+        // given
+        BiFunction<Integer, WorkQueue<Integer, Integer>, Integer> handler = (t, wq) -> {
+            sleep(t);
+            return t;
+        };
+        var underTest = new WorkQueue<>(handler, 10, 4, 5000);
+        underTest.addAll(List.of(600, 400, 200, 10));
+        // when
+        List<Integer> results;
+        try (var stream = underTest.executeStream(ResultOrder.COMPLETION, 4)) {
+            results = stream.toList();
+        }
+        // then
+        assertThat(results).containsExactly(10, 200, 400, 600);
+    }
+
+    @Test
+    @DisplayName("Hands out the first result before the whole batch is done")
+    void streamsFirstResultEarly() {
+        // given
+        BiFunction<Integer, WorkQueue<Integer, Integer>, Integer> handler = (t, wq) -> {
+            sleep(t);
+            return t;
+        };
+        var underTest = new WorkQueue<>(handler, 10, 2, 5000);
+        underTest.addAll(List.of(10, 1000));
+        long start = System.nanoTime();
+        // when
+        try (var stream = underTest.executeStream(ResultOrder.COMPLETION, 2)) {
+            var iterator = stream.iterator();
+            var first = iterator.next();
+            long firstLatency = System.nanoTime() - start;
+            // then
+            assertThat(first).isEqualTo(10);
+            assertThat(firstLatency).isLessThan(500_000_000L);
+            assertThat(iterator.next()).isEqualTo(1000);
+            assertThat(iterator.hasNext()).isFalse();
+        }
+    }
+
+    @Test
+    @DisplayName("Keeps the completion window when skipped tasks never took a turn")
+    void keepsCompletionWindowPastSkippedTasks() {
+        // given
+        var concurrency = new ConcurrencyProbe();
+        BiFunction<Integer, WorkQueue<Integer, Integer>, Integer> handler = (t, wq) -> {
+            concurrency.run(t);
+            return t;
+        };
+        var underTest = WorkQueue.builder(handler)
+                .maxWorkers(8)
+                .executionTimeout(5000)
+                .build();
+        for (int i = 0; i < 6; ++i) {
+            underTest.submit(0).cancel(false);
+        }
+        underTest.addAll(Collections.nCopies(16, 20));
+        // when
+        List<Integer> results;
+        try (var stream = underTest.executeStream(ResultOrder.COMPLETION, 2)) {
+            results = stream.toList();
+        }
+        // then
+        assertThat(results).hasSize(16);
+        assertThat(concurrency.peak()).isLessThanOrEqualTo(2);
+    }
+
+    @Test
+    @DisplayName("Streams results in submission order within a bounded window")
+    void streamsResultsInSubmissionOrder() {
+        // given
+        List<Integer> tasks = new ArrayList<>();
+        var rand = new Random();
+        for (int i = 0; i < 200; ++i) {
+            tasks.add(rand.nextInt(10));
+        }
+        var concurrency = new ConcurrencyProbe();
+        BiFunction<Integer, WorkQueue<Integer, Integer>, Integer> handler = (t, wq) -> {
+            concurrency.run(t);
+            return t;
+        };
+        var underTest = WorkQueue.builder(handler)
+                .maxWorkers(16)
+                .executionTimeout(10000)
+                .build();
+        underTest.addAll(tasks);
+        // when
+        List<Integer> results;
+        try (var stream = underTest.executeStream(ResultOrder.SUBMISSION, 4)) {
+            results = stream.toList();
+        }
+        // then
+        assertThat(results).isEqualTo(tasks);
+        assertThat(concurrency.peak()).isLessThanOrEqualTo(4);
+    }
+
+    @Test
+    @DisplayName("Runs a batch in parallel within the submission order window")
+    void streamsBatchInParallel() {
+        // given
+        var concurrency = new ConcurrencyProbe();
+        BiFunction<Integer, WorkQueue<Integer, Integer>, Integer> handler = (t, wq) -> {
+            concurrency.run(2);
+            return t;
+        };
+        var underTest = WorkQueue.builder(handler)
+                .maxWorkers(8)
+                .executionTimeout(10000)
+                .build();
+        List<Integer> tasks = IntStream.range(0, 512).boxed().toList();
+        underTest.addAll(tasks);
+        // when
+        List<Integer> results;
+        try (var stream = underTest.executeStream(ResultOrder.SUBMISSION, 4)) {
+            results = stream.toList();
+        }
+        // then
+        assertThat(results).isEqualTo(tasks);
+        assertThat(concurrency.peak()).isBetween(3, 4);
+    }
+
+    @Test
+    @DisplayName("Streams results of tasks added by handlers and skips failed ones")
+    void streamsSubtasksAndSkipsFailures() {
+        // given
+        BiFunction<Integer, WorkQueue<Integer, Integer>, Integer> handler = (t, wq) -> {
+            if (t == 0) {
+                wq.addAll(List.of(1, 2, 3, 4));
+            }
+            if (t == 3) {
+                throw new IllegalArgumentException("Unlucky task");
+            }
+            return t;
+        };
+        var underTest = new WorkQueue<>(handler, 10, 2, 5000);
+        underTest.add(0);
+        // when
+        List<Integer> results;
+        try (var stream = underTest.executeStream(ResultOrder.SUBMISSION, 2)) {
+            results = stream.toList();
+        }
+        // then
+        assertThat(results).containsExactly(0, 1, 2, 4);
+    }
+
+    @Test
+    @DisplayName("Streams results a persistent queue finished before streaming started")
+    void streamsAlreadyFinishedResults() throws InterruptedException {
+        // given
+        BiFunction<Integer, WorkQueue<Integer, Integer>, Integer> handler = (t, wq) -> {
+            sleep(t);
+            return t;
+        };
+        try (var underTest = WorkQueue.builder(handler)
+                .maxWorkers(2)
+                .persistent(true)
+                .executionTimeout(5000)
+                .build()) {
+            underTest.addAll(List.of(0, 1, 300, 2));
+            sleep(100);
+            // when
+            List<Integer> results;
+            try (var stream = underTest.executeStream(ResultOrder.SUBMISSION, 1)) {
+                results = stream.toList();
+            }
+            underTest.add(5);
+            // then
+            assertThat(results).containsExactly(0, 1, 300, 2);
+            assertThat(underTest.execute()).containsExactly(5);
+        }
+    }
+
+    @Test
+    @DisplayName("Stops streaming after TIMEOUT")
+    void streamDoesNotWorkLongerThanTimeout() {
+        // given
+        BiFunction<Integer, WorkQueue<Integer, Integer>, Integer> handler = (t, wq) -> {
+            sleep(t);
+            return t;
+        };
+        var underTest = new WorkQueue<>(handler, 10, 2, 500);
+        underTest.addAll(List.of(10, 10000));
+        // when
+        var stream = underTest.executeStream(ResultOrder.COMPLETION, 2);
+        // then
+        assertThatThrownBy(stream::toList).hasMessage("Process has been executing too long");
+    }
+
+    @Test
+    @DisplayName("Makes producers wait for room instead of failing")
+    void putWaitsForRoom() throws InterruptedException {
+        // given
+        BiFunction<String, WorkQueue<String, String>, String> handler = (t, wq) -> {
+            sleep(200);
+            return t;
+        };
+        try (var underTest = WorkQueue.builder(handler)
+                .maxQueueSize(1)
+                .minWorkers(1)
+                .maxWorkers(1)
+                .persistent(true)
+                .executionTimeout(5000)
+                .build()) {
+            underTest.add("a");
+            sleep(50);
+            underTest.add("b");
+            // when
+            long start = System.nanoTime();
+            underTest.put("c");
+            long waited = System.nanoTime() - start;
+            // then
+            assertThat(waited).isGreaterThan(100_000_000L);
+            assertThat(underTest.execute()).containsExactly("a", "b", "c");
+        }
+    }
+
+    @Test
+    @DisplayName("Reports a full queue without throwing")
+    void tryAddAndOfferReportFullQueue() throws InterruptedException {
+        // given
+        BiFunction<String, WorkQueue<String, String>, String> handler = (t, wq) -> t;
+        var underTest = new WorkQueue<>(handler, 2, 1, 1000);
+        // when
+        boolean first = underTest.tryAdd("a");
+        boolean second = underTest.offer("b", 10, TimeUnit.MILLISECONDS);
+        boolean third = underTest.tryAdd("c");
+        long start = System.nanoTime();
+        boolean fourth = underTest.offer("d", 100, TimeUnit.MILLISECONDS);
+        long waited = System.nanoTime() - start;
+        // then
+        assertThat(first).isTrue();
+        assertThat(second).isTrue();
+        assertThat(third).isFalse();
+        assertThat(fourth).isFalse();
+        assertThat(waited).isGreaterThanOrEqualTo(100_000_000L);
+        assertThat(underTest.execute()).containsExactly("a", "b");
+        assertThat(underTest.tryAdd("e")).isTrue();
+    }
+
+    @Test
+    @DisplayName("Releases waiting producers when closed")
+    void closeReleasesWaitingProducers() throws InterruptedException {
+        // given
+        BiFunction<String, WorkQueue<String, String>, String> handler = (t, wq) -> t;
+        var underTest = new WorkQueue<>(handler, 1, 1, 1000);
+        underTest.add("a");
+        var failure = new AtomicReference<Throwable>();
+        var producer = Thread.ofPlatform().start(() -> {
+            try {
+                underTest.put("b");
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        sleep(100);
+        // when
+        underTest.close();
+        producer.join(1000);
+        // then
+        assertThat(producer.isAlive()).isFalse();
+        assertThat(failure.get())
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessage("WorkQueue is closed");
+    }
+
+    @Test
+    @DisplayName("Steals subtasks that handlers spawn recursively")
+    void stealsRecursiveSubtasks() throws InterruptedException {
+        // given
+        int nodes = 1023;
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        var steals = new AtomicLong();
+        BiFunction<Integer, WorkQueue<Integer, Integer>, Integer> handler = (node, wq) -> {
+            threads.add(Thread.currentThread());
+            int left = 2 * node + 1;
+            if (left < nodes) {
+                wq.addAll(List.of(left, left + 1));
+            }
+            sleep(1);
+            steals.accumulateAndGet(wq.stealCount(), Math::max);
+            return node;
+        };
+        var underTest = WorkQueue.builder(handler)
+                .executionMode(ExecutionMode.WORK_STEALING)
+                .maxWorkers(4)
+                .executionTimeout(10000)
+                .build();
+        // when
+        underTest.add(0);
+        var results = underTest.execute();
+        // then
+        assertThat(results).hasSize(nodes);
+        assertThat(new HashSet<>(results)).hasSize(nodes);
+        assertThat(threads).hasSizeGreaterThan(1).allMatch(t -> t instanceof ForkJoinWorkerThread);
+        assertThat(steals.get()).isPositive();
+    }
+
+    @Test
+    @DisplayName("Keeps submission order of external tasks with work stealing")
+    void workStealingKeepsOrder() throws InterruptedException {
+        // given
+        List<Integer> tasks = new ArrayList<>();
+        for (int i = 0; i < 500; ++i) {
+            tasks.add(i);
+        }
+        BiFunction<Integer, WorkQueue<Integer, Integer>, Integer> handler = (t, wq) -> t * 2;
+        try (var underTest = WorkQueue.builder(handler)
+                .executionMode(ExecutionMode.WORK_STEALING)
+                .maxWorkers(4)
+                .persistent(true)
+                .executionTimeout(5000)
+                .build()) {
+            // when
+            underTest.addAll(tasks);
+            var results = underTest.execute();
+            // then
+            assertThat(results).isEqualTo(tasks.stream().map(t -> t * 2).toList());
+        }
+    }
+
+    @Test
+    @DisplayName("Keeps every batch contiguous when producers add batches concurrently")
+    void keepsConcurrentBatchesContiguous() throws InterruptedException {
+        // given
+        int producers = 4;
+        int batchSize = 10000;
+        BiFunction<Integer, WorkQueue<Integer, Integer>, Integer> handler = (t, wq) -> t;
+        var underTest = WorkQueue.builder(handler)
+                .maxWorkers(4)
+                .executionTimeout(10000)
+                .build();
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; ++p) {
+            List<Integer> batch = new ArrayList<>();
+            for (int i = 0; i < batchSize; ++i) {
+                batch.add(p * batchSize + i);
+            }
+            threads.add(Thread.ofPlatform().start(() -> underTest.addAll(batch)));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // when
+        var results = underTest.execute();
+        // then
+        assertThat(results).hasSize(producers * batchSize);
+        for (int start = 0; start < results.size(); start += batchSize) {
+            int first = results.get(start);
+            assertThat(first % batchSize).isZero();
+            for (int i = 0; i < batchSize; ++i) {
+                assertThat(results.get(start + i)).isEqualTo(first + i);
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Runs the rest of a batch when one of its tasks fails")
+    void failingTaskDoesNotStopItsBatch() throws InterruptedException {
+        // given
+        List<Integer> tasks = new ArrayList<>();
+        for (int i = 0; i < 1000; ++i) {
+            tasks.add(i);
+        }
+        BiFunction<Integer, WorkQueue<Integer, Integer>, Integer> handler = (t, wq) -> {
+            if (t == 500) {
+                throw new IllegalArgumentException("Unlucky task");
+            }
+            return t;
+        };
+        var underTest = WorkQueue.builder(handler)
+                .maxWorkers(1)
+                .executionTimeout(5000)
+                .build();
+        // when
+        underTest.addAll(tasks);
+        var results = underTest.execute();
+        // then
+        assertThat(results).hasSize(999).doesNotContain(500);
+        assertThat(underTest.tryAdd(0)).isTrue();
+    }
+
+    @Test
+    @DisplayName("Records task counts and latencies when metrics are enabled")
+    void recordsMetrics() throws InterruptedException {
+        // given
+        AtomicInteger finished = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        WorkQueueListener listener = new WorkQueueListener() {
+            @Override
+            public void onTaskFinished(long waitNanos, long serviceNanos, boolean taskFailed) {
+                finished.incrementAndGet();
+                if (taskFailed) {
+                    failed.incrementAndGet();
+                }
+            }
+        };
+        var underTest = WorkQueue.<Integer, Integer>builder((i, wq) -> {
+                    sleep(5);
+                    if (i == 0) {
+                        throw new IllegalArgumentException();
+                    }
+                    return i;
+                })
+                .maxWorkers(2)
+                .listener(listener)
+                .build();
+        underTest.addAll(List.of(0, 1, 2, 3));
+        underTest.add(4);
+        // when
+        underTest.execute();
+        // then
+        WorkQueueMetrics metrics = underTest.metrics();
+        assertThat(metrics.addedTasks()).isEqualTo(5);
+        assertThat(metrics.completedTasks()).isEqualTo(4);
+        assertThat(metrics.failedTasks()).isEqualTo(1);
+        assertThat(metrics.busyWorkers()).isZero();
+        assertThat(metrics.queueDepth()).isZero();
+        assertThat(metrics.serviceTime().count()).isEqualTo(5);
+        assertThat(metrics.serviceTime().percentile(50)).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(5));
+        assertThat(metrics.waitTime().max()).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(5));
+        assertThat(metrics.endToEndTime().max())
+                .isGreaterThanOrEqualTo(metrics.serviceTime().max());
+        assertThat(finished.get()).isEqualTo(5);
+        assertThat(failed.get()).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("Reports queue depth and busy workers while running, without recorded metrics")
+    void reportsGauges() throws InterruptedException {
+        // given
+        CountDownLatch release = new CountDownLatch(1);
+        var underTest = WorkQueue.<Integer, Integer>builder((i, wq) -> {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return i;
+                })
+                .maxWorkers(2)
+                .persistent(true)
+                .build();
+        WorkQueueMetrics metrics = underTest.metrics();
+        // when
+        for (int i = 0; i < 5; ++i) {
+            underTest.add(i);
+        }
+        long deadline = System.currentTimeMillis() + 1000;
+        while (metrics.busyWorkers() < 2 && System.currentTimeMillis() < deadline) {
+            sleep(1);
+        }
+        // then
+        assertThat(metrics.busyWorkers()).isEqualTo(2);
+        assertThat(metrics.queueDepth()).isEqualTo(3);
+        assertThat(metrics.workers()).isEqualTo(2);
+        release.countDown();
+        assertThat(underTest.execute()).hasSize(5);
+        underTest.close();
+    }
+
+    @Test
+    @DisplayName("Interrupts only the task that runs past its timeout")
+    void timesOutSlowTaskOnly() throws InterruptedException {
+        // given
+        AtomicBoolean interrupted = new AtomicBoolean();
+        var underTest = WorkQueue.<Integer, Integer>builder((i, wq) -> {
+                    if (i == 1) {
+                        try {
+                            Thread.sleep(10_000);
+                        } catch (InterruptedException e) {
+                            interrupted.set(true);
+                            throw new RuntimeException(e);
+                        }
+                    }
+                    return i;
+                })
+                .maxWorkers(3)
+                .taskTimeout(100)
+                .build();
+        underTest.addAll(List.of(0, 1, 2));
+        // when
+        long start = System.currentTimeMillis();
+        List<TaskResult<Integer>> outcomes = underTest.executePartial();
+        // then
+        assertThat(System.currentTimeMillis() - start).isLessThan(5_000);
+        assertThat(outcomes).containsExactly(TaskResult.completed(0), TaskResult.timedOut(), TaskResult.completed(2));
+        assertThat(interrupted).isTrue();
+    }
+
+    @Test
+    @DisplayName("Does not leak a timeout interrupt into the next task on the same worker")
+    void timeoutDoesNotLeakIntoNextTask() throws InterruptedException {
+        // given
+        var underTest = WorkQueue.<Integer, Boolean>builder((i, wq) -> {
+                    if (i == 0) {
+                        long deadline = System.currentTimeMillis() + 300;
+                        while (System.currentTimeMillis() < deadline) {
+                            Thread.onSpinWait();
+                        }
+                    }
+                    return Thread.currentThread().isInterrupted();
+                })
+                .minWorkers(1)
+                .maxWorkers(1)
+                .taskTimeout(50)
+                .build();
+        underTest.addAll(List.of(0, 1, 2));
+        // when
+        List<TaskResult<Boolean>> outcomes = underTest.executePartial();
+        // then
+        assertThat(outcomes).containsExactly(
+                TaskResult.timedOut(), TaskResult.completed(false), TaskResult.completed(false));
+    }
+
+    @Test
+    @DisplayName("Returns finished results and cancels the rest when the round runs out of time")
+    void returnsPartialResults() throws InterruptedException {
+        // given
+        AtomicInteger interrupted = new AtomicInteger();
+        IllegalArgumentException failure = new IllegalArgumentException("bad task");
+        var underTest = WorkQueue.<Integer, Integer>builder((i, wq) -> {
+                    if (i == 1) {
+                        throw failure;
+                    }
+                    if (i >= 3) {
+                        try {
+                            Thread.sleep(10_000);
+                        } catch (InterruptedException e) {
+                            interrupted.incrementAndGet();
+                        }
+                    }
+                    return i;
+                })
+                .maxWorkers(5)
+                .persistent(true)
+                .executionTimeout(300)
+                .build();
+        underTest.addAll(List.of(0, 1, 2, 3, 4));
+        // when
+        List<TaskResult<Integer>> outcomes = underTest.executePartial();
+        // then
+        assertThat(outcomes).extracting(TaskResult::status).containsExactly(
+                TaskStatus.COMPLETED, TaskStatus.FAILED, TaskStatus.COMPLETED,
+                TaskStatus.CANCELLED, TaskStatus.CANCELLED);
+        assertThat(outcomes.get(0).value()).isZero();
+        assertThat(outcomes.get(1).error()).isSameAs(failure);
+        long deadline = System.currentTimeMillis() + 1000;
+        while (interrupted.get() < 2 && System.currentTimeMillis() < deadline) {
+            sleep(1);
+        }
+        assertThat(interrupted.get()).isEqualTo(2);
+        // the abandoned round does not leak into the next one
+        underTest.add(2);
+        assertThat(underTest.execute()).containsExactly(2);
+        underTest.close();
+    }
+
+    @Test
+    @DisplayName("Completes submitted futures as their tasks finish")
+    void completesSubmittedFutures() throws Exception {
+        // given
+        var underTest = WorkQueue.<Integer, Integer>builder((i, wq) -> {
+                    if (i < 0) {
+                        throw new IllegalArgumentException("negative");
+                    }
+                    return i * 2;
+                })
+                .persistent(true)
+                .build();
+        // when
+        CompletableFuture<Integer> composed = underTest.submit(21).thenApply(i -> i + 1);
+        CompletableFuture<Integer> failed = underTest.submit(-1);
+        // then
+        assertThat(composed.get(1, TimeUnit.SECONDS)).isEqualTo(43);
+        assertThatThrownBy(() -> failed.get(1, TimeUnit.SECONDS))
+                .isInstanceOf(ExecutionException.class)
+                .hasCauseInstanceOf(IllegalArgumentException.class);
+        assertThat(underTest.execute()).containsExactly(42);
+        underTest.close();
+    }
+
+    @Test
+    @DisplayName("Skips submitted tasks whose future got cancelled")
+    void skipsCancelledSubmissions() throws InterruptedException {
+        // given
+        var underTest = new WorkQueue<Integer, Integer>((i, wq) -> i, 10, 2, 1000);
+        CompletableFuture<Integer> kept = underTest.submit(1);
+        CompletableFuture<Integer> cancelled = underTest.submit(2);
+        // when
+        cancelled.cancel(false);
+        List<Integer> results = underTest.execute();
+        // then
+        assertThat(results).containsExactly(1);
+        assertThat(kept).isCompletedWithValue(1);
+    }
+
+    @Test
+    @DisplayName("Completes the round asynchronously without holding on to the workers")
+    void executesAsynchronously() throws Exception {
+        // given
+        CountDownLatch release = new CountDownLatch(1);
+        var underTest = WorkQueue.<Integer, Integer>builder((i, wq) -> {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return i;
+                })
+                .maxWorkers(4)
+                .build();
+        underTest.addAll(IntStream.range(0, 20).boxed().toList());
+        // when
+        CompletableFuture<List<Integer>> round = underTest.executeAsync();
+        // then
+        assertThat(round.isDone()).isFalse();
+        release.countDown();
+        assertThat(round.get(5, TimeUnit.SECONDS)).isEqualTo(IntStream.range(0, 20).boxed().toList());
+        long deadline = System.currentTimeMillis() + 1000;
+        while (underTest.workerCount() > 0 && System.currentTimeMillis() < deadline) {
+            sleep(1);
+        }
+        assertThat(underTest.workerCount()).isZero();
+        underTest.add(20);
+        assertThat(underTest.executeAsync().get(1, TimeUnit.SECONDS)).containsExactly(20);
+    }
+
+    @Test
+    @DisplayName("Fails the asynchronous round when it runs out of time")
+    void asyncRoundTimesOut() throws InterruptedException {
+        // given
+        var underTest = new WorkQueue<Integer, Integer>((i, wq) -> {
+            sleep(i);
+            return i;
+        }, 10, 2, 100);
+        underTest.add(10);
+        underTest.add(5_000);
+        // when
+        CompletableFuture<List<Integer>> round = underTest.executeAsync();
+        // then
+        assertThatThrownBy(() -> round.get(2, TimeUnit.SECONDS))
+                .isInstanceOf(ExecutionException.class)
+                .hasCauseInstanceOf(IllegalStateException.class);
+        underTest.add(1);
+        assertThat(underTest.execute()).containsExactly(1);
+    }
+
+    @Test
+    @DisplayName("Runs urgent tasks first and keeps results in submission order")
+    void runsHigherPrioritiesFirst() throws InterruptedException {
+        // given
+        List<Integer> runOrder = Collections.synchronizedList(new ArrayList<>());
+        var underTest = WorkQueue.<Integer, Integer>builder((i, wq) -> {
+                    runOrder.add(i);
+                    return i;
+                })
+                .minWorkers(1)
+                .maxWorkers(1)
+                .prioritized(true)
+                .build();
+        for (int i = 0; i < 5; ++i) {
+            underTest.add(i);
+        }
+        underTest.add(5, 10);
+        underTest.add(6, 5);
+        // when
+        List<Integer> results = underTest.execute();
+        // then
+        assertThat(runOrder).containsExactly(5, 6, 0, 1, 2, 3, 4);
+        assertThat(results).containsExactly(0, 1, 2, 3, 4, 5, 6);
+    }
+
+    @Test
+    @DisplayName("Lets waiting tasks overtake newer tasks of a higher priority")
+    void agesWaitingTasks() throws InterruptedException {
+        // given
+        List<Integer> runOrder = Collections.synchronizedList(new ArrayList<>());
+        var underTest = WorkQueue.<Integer, Integer>builder((i, wq) -> {
+                    runOrder.add(i);
+                    return i;
+                })
+                .minWorkers(1)
+                .maxWorkers(1)
+                .prioritized(true)
+                .priorityAging(1)
+                .build();
+        underTest.add(0);
+        sleep(50);
+        underTest.add(1, 5);
+        underTest.add(2, 1_000);
+        // when
+        underTest.execute();
+        // then
+        assertThat(runOrder).containsExactly(2, 0, 1);
+    }
+
+    @Test
+    @DisplayName("Rejects priorities on a queue that was not built for them")
+    void rejectsPrioritiesWhenDisabled() {
+        // given
+        var underTest = new WorkQueue<Integer, Integer>((i, wq) -> i, 10, 1, 1000);
+        var prioritized = WorkQueue.<Integer, Integer>builder((i, wq) -> i).prioritized(true).build();
+        // when
+        // then
+        assertThatThrownBy(() -> underTest.add(1, 1))
+                .isInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(() -> prioritized.executeStream(ResultOrder.SUBMISSION, 10))
+                .isInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(() -> WorkQueue.<Integer, Integer>builder((i, wq) -> i)
+                .prioritized(true)
+                .executionMode(ExecutionMode.WORK_STEALING)
+                .build())
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    @DisplayName("Does not let a flooded lane hold up the other lanes")
+    void sharesWorkersBetweenLanes() throws InterruptedException {
+        // given
+        List<Integer> runOrder = Collections.synchronizedList(new ArrayList<>());
+        var underTest = WorkQueue.<Integer, Integer>builder((i, wq) -> {
+                    runOrder.add(i);
+                    return i;
+                })
+                .minWorkers(1)
+                .maxWorkers(1)
+                .lane("bulk", 1)
+                .lane("interactive", 1)
+                .build();
+        underTest.addAll("bulk", IntStream.range(0, 1000).boxed().toList());
+        for (int i = 1000; i < 1003; ++i) {
+            underTest.add("interactive", i);
+        }
+        // when
+        List<Integer> results = underTest.execute();
+        // then
+        assertThat(results).isEqualTo(IntStream.range(0, 1003).boxed().toList());
+        for (int i = 1000; i < 1003; ++i) {
+            assertThat(runOrder.indexOf(i)).isLessThan(100);
+        }
+    }
+
+    @Test
+    @DisplayName("Shares the workers between lanes by weight")
+    void weighsLanes() throws InterruptedException {
+        // given
+        List<String> runOrder = Collections.synchronizedList(new ArrayList<>());
+        var underTest = WorkQueue.<String, String>builder((s, wq) -> {
+                    runOrder.add(s);
+                    return s;
+                })
+                .minWorkers(1)
+                .maxWorkers(1)
+                .lane("heavy", 3)
+                .lane("light", 1)
+                .build();
+        for (int i = 0; i < 400; ++i) {
+            underTest.add("heavy", "heavy");
+            underTest.add("light", "light");
+        }
+        // when
+        underTest.execute();
+        // then
+        long heavy = runOrder.subList(0, 400).stream().filter("heavy"::equals).count();
+        assertThat(heavy).isBetween(280L, 320L);
+    }
+
+    @Test
+    @DisplayName("Limits every lane on its own")
+    void limitsLanes() {
+        // given
+        var underTest = WorkQueue.<Integer, Integer>builder((i, wq) -> i)
+                .lane("small", 1, 2)
+                .build();
+        underTest.add("small", 1);
+        underTest.addAll("small", List.of(2));
+        // when
+        // then
+        assertThatThrownBy(() -> underTest.add("small", 3))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessage("Lane queue limit is reached");
+        assertThatThrownBy(() -> underTest.add("missing", 3))
+                .isInstanceOf(IllegalArgumentException.class);
+        underTest.add(3);
+        underTest.add(WorkQueue.DEFAULT_LANE, 4);
+        assertThatThrownBy(() -> new WorkQueue<Integer, Integer>((i, wq) -> i, 10, 1, 100).add("small", 1))
+                .isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    @DisplayName("Makes producers wait for room in a full lane")
+    void putWaitsForLaneRoom() throws InterruptedException {
+        // given
+        var underTest = WorkQueue.<Integer, Integer>builder((i, wq) -> {
+                    sleep(200);
+                    return i;
+                })
+                .minWorkers(1)
+                .maxWorkers(1)
+                .persistent(true)
+                .executionTimeout(5000)
+                .lane(WorkQueue.DEFAULT_LANE, 1, 1)
+                .build();
+        underTest.add(1);
+        sleep(50);
+        underTest.add(2);
+        // when
+        boolean offered = underTest.offer(3, 50, TimeUnit.MILLISECONDS);
+        long start = System.nanoTime();
+        underTest.put(3);
+        long waited = System.nanoTime() - start;
+        List<Integer> results = underTest.execute();
+        underTest.close();
+        // then
+        assertThat(offered).isFalse();
+        assertThat(waited).isGreaterThan(50_000_000L);
+        assertThat(results).containsExactly(1, 2, 3);
+    }
+
+    @Test
+    @DisplayName("Reports a full default lane from tryAdd rather than throwing")
+    void tryAddReportsFullLane() {
+        // given
+        var underTest = WorkQueue.<Integer, Integer>builder((i, wq) -> i)
+                .lane(WorkQueue.DEFAULT_LANE, 1, 1)
+                .build();
+        // when
+        boolean first = underTest.tryAdd(1);
+        boolean second = underTest.tryAdd(2);
+        // then
+        assertThat(first).isTrue();
+        assertThat(second).isFalse();
+        assertThatThrownBy(() -> underTest.add(3))
+                .isInstanceOf(IllegalStateException.class);
+        assertThat(underTest.tryAdd(3)).isFalse();
+    }
+
+    @Test
+    @DisplayName("Runs the handler once for equal tasks")
+    void memoizesResults() throws InterruptedException {
+        // given
+        AtomicInteger calls = new AtomicInteger(0);
+        var underTest = WorkQueue.<Integer, Integer>builder((i, wq) -> {
+                    calls.incrementAndGet();
+                    sleep(50);
+                    return i * 10;
+                })
+                .maxWorkers(4)
+                .memoize(100, 0)
+                .build();
+        underTest.addAll(List.of(1, 1, 1, 1, 2));
+        // when
+        List<Integer> first = underTest.execute();
+        underTest.addAll(List.of(2, 1));
+        List<Integer> second = underTest.execute();
+        // then
+        assertThat(first).containsExactly(10, 10, 10, 10, 20);
+        assertThat(second).containsExactly(20, 10);
+        assertThat(calls.get()).isEqualTo(2);
+    }
+
+    @Test
+    @DisplayName("Shares a failure with equal tasks but does not cache it")
+    void doesNotMemoizeFailures() throws InterruptedException {
+        // given
+        AtomicInteger calls = new AtomicInteger(0);
+        var underTest = WorkQueue.<Integer, Integer>builder((i, wq) -> {
+                    if (calls.incrementAndGet() == 1) {
+                        sleep(50);
+                        throw new IllegalStateException("boom");
+                    }
+                    return i;
+                })
+                .maxWorkers(2)
+                .memoize(100, 0)
+                .build();
+        underTest.add(7);
+        underTest.add(7);
+        // when
+        List<TaskResult<Integer>> first = underTest.executePartial();
+        underTest.add(7);
+        List<Integer> second = underTest.execute();
+        // then
+        assertThat(first).extracting(TaskResult::status).containsExactly(TaskStatus.FAILED, TaskStatus.FAILED);
+        assertThat(second).containsExactly(7);
+        assertThat(calls.get()).isEqualTo(2);
+    }
+
+    @Test
+    @DisplayName("Retries failing tasks without holding a worker during the backoff")
+    void retriesFailingTasks() throws InterruptedException {
+        // given
+        List<String> calls = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger failures = new AtomicInteger(0);
+        var underTest = WorkQueue.<String, String>builder((s, wq) -> {
+                    calls.add(s);
+                    if (s.equals("flaky") && failures.incrementAndGet() < 3) {
+                        throw new IllegalStateException("try again");
+                    }
+                    return s.toUpperCase();
+                })
+                .minWorkers(1)
+                .maxWorkers(1)
+                .retry(RetryPolicy.builder().maxAttempts(3).backoff(100, 100).jitter(0).build())
+                .build();
+        underTest.add("flaky");
+        underTest.addAll(List.of("a", "b"));
+        // when
+        List<String> results = underTest.execute();
+        // then
+        assertThat(results).containsExactly("FLAKY", "A", "B");
+        assertThat(calls).containsExactly("flaky", "a", "b", "flaky", "flaky");
+    }
+
+    @Test
+    @DisplayName("Reports the last failure once retries run out")
+    void givesUpRetrying() throws InterruptedException {
+        // given
+        AtomicInteger attempts = new AtomicInteger(0);
+        var underTest = WorkQueue.<Integer, Integer>builder((i, wq) -> {
+                    if (i < 0) {
+                        throw new IllegalStateException("attempt " + attempts.incrementAndGet());
+                    }
+                    if (i == 0) {
+                        attempts.incrementAndGet();
+                        throw new UnsupportedOperationException("permanent");
+                    }
+                    return i;
+                })
+                .retry(RetryPolicy.builder()
+                        .maxAttempts(3)
+                        .backoff(1, 5)
+                        .retryOn(e -> !(e instanceof UnsupportedOperationException))
+                        .build())
+                .build();
+        underTest.add(-1);
+        underTest.add(1);
+        // when
+        List<TaskResult<Integer>> first = underTest.executePartial();
+        underTest.add(0);
+        List<TaskResult<Integer>> second = underTest.executePartial();
+        // then
+        assertThat(first.get(0).status()).isEqualTo(TaskStatus.FAILED);
+        assertThat(first.get(0).error()).hasMessage("attempt 3");
+        assertThat(first.get(1)).isEqualTo(TaskResult.completed(1));
+        assertThat(second.get(0).error()).isInstanceOf(UnsupportedOperationException.class);
+        assertThat(attempts.get()).isEqualTo(4);
+    }
+
+    @Test
+    @DisplayName("Settles retries still backing off when the round is abandoned")
+    void abandonsRetries() throws InterruptedException {
+        // given
+        var underTest = WorkQueue.<Integer, Integer>builder((i, wq) -> {
+                    throw new IllegalStateException("down");
+                })
+                .executionTimeout(100)
+                .retry(RetryPolicy.builder().maxAttempts(2).backoff(5_000, 5_000).build())
+                .build();
+        CompletableFuture<Integer> future = underTest.submit(1);
+        // when
+        List<TaskResult<Integer>> outcomes = underTest.executePartial();
+        // then
+        assertThat(outcomes).containsExactly(TaskResult.cancelled());
+        assertThat(future).isCancelled();
+        assertThat(underTest.metrics().queueDepth()).isZero();
+    }
+
+    @Test
+    @DisplayName("Starts tasks no faster than the rate limit")
+    void limitsRate() throws InterruptedException {
+        // given
+        List<Long> starts = Collections.synchronizedList(new ArrayList<>());
+        var underTest = WorkQueue.<Integer, Integer>builder((i, wq) -> {
+                    starts.add(System.nanoTime());
+                    return i;
+                })
+                .maxWorkers(4)
+                .rateLimit(50, 2)
+                .build();
+        underTest.addAll(IntStream.range(0, 12).boxed().toList());
+        // when
+        List<Integer> results = underTest.execute();
+        // then
+        assertThat(results).hasSize(12);
+        List<Long> sorted = starts.stream().sorted().toList();
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(sorted.get(11) - sorted.get(0));
+        // Two tasks start right away, the other ten take a token every 20 ms
+        assertThat(elapsed).isGreaterThanOrEqualTo(180);
+    }
+
+    @Test
+    @DisplayName("Keeps a rate limited lane from holding the others up")
+    void limitsLaneRate() throws InterruptedException {
+        // given
+        Map<String, Long> finishedAt = new ConcurrentHashMap<>();
+        var underTest = WorkQueue.<String, String>builder((s, wq) -> {
+                    finishedAt.put(s, System.nanoTime());
+                    return s;
+                })
+                .maxWorkers(2)
+                .lane("slow", 1)
+                .lane("fast", 1)
+                .laneRateLimit("slow", 20, 1)
+                .build();
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; ++i) {
+            underTest.add("slow", "slow" + i);
+            underTest.add("fast", "fast" + i);
+        }
+        // when
+        underTest.execute();
+        // then
+        assertThat(TimeUnit.NANOSECONDS.toMillis(finishedAt.get("fast4") - start)).isLessThan(100);
+        assertThat(TimeUnit.NANOSECONDS.toMillis(finishedAt.get("slow4") - start)).isGreaterThanOrEqualTo(180);
+        assertThatThrownBy(() -> WorkQueue.<String, String>builder((s, wq) -> s)
+                .laneRateLimit("missing", 1, 1)
+                .build())
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    @DisplayName("Hands tasks to a batch handler and returns results per task")
+    void handlesBatches() throws InterruptedException {
+        // given
+        List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        var underTest = WorkQueue.<Integer, Integer>batchBuilder(batch -> {
+                    batchSizes.add(batch.size());
+                    return batch.stream().map(i -> i * 2).toList();
+                })
+                .maxWorkers(2)
+                .batching(4, 20)
+                .build();
+        underTest.addAll(IntStream.range(0, 9).boxed().toList());
+        underTest.add(9);
+        // when
+        List<Integer> results = underTest.execute();
+        // then
+        assertThat(results).containsExactly(0, 2, 4, 6, 8, 10, 12, 14, 16, 18);
+        assertThat(batchSizes).containsExactlyInAnyOrder(4, 4, 2);
+    }
+
+    @Test
+    @DisplayName("Fails every task of a failing batch")
+    void failsBatches() throws InterruptedException {
+        // given
+        var underTest = WorkQueue.<Integer, Integer>batchBuilder(batch -> {
+                    if (batch.contains(3)) {
+                        throw new IllegalStateException("bad batch");
+                    }
+                    return batch.subList(0, batch.size() - 1);
+                })
+                .batching(2, 10)
+                .build();
+        underTest.addAll(List.of(1, 2));
+        // when
+        List<TaskResult<Integer>> first = underTest.executePartial();
+        underTest.addAll(List.of(3, 4));
+        List<TaskResult<Integer>> second = underTest.executePartial();
+        // then
+        assertThat(first).extracting(TaskResult::status).containsExactly(TaskStatus.FAILED, TaskStatus.FAILED);
+        assertThat(first.get(0).error()).hasMessage("Batch handler returned 1 results for 2 tasks");
+        assertThat(second).extracting(TaskResult::error).allSatisfy(e -> assertThat(e).hasMessage("bad batch"));
+        assertThatThrownBy(() -> WorkQueue.<Integer, Integer>builder((i, wq) -> i).batching(2, 10).build())
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    @DisplayName("Fails every task of a batch whose handler throws an Error")
+    void failsBatchesOnErrors() throws InterruptedException {
+        // given
+        var underTest = WorkQueue.<Integer, Integer>batchBuilder(batch -> {
+                    throw new AssertionError("bad batch");
+                })
+                .batching(3, 10)
+                .executionTimeout(3000)
+                .build();
+        underTest.addAll(List.of(1, 2, 3));
+        // when
+        long startedAt = System.nanoTime();
+        List<TaskResult<Integer>> results = underTest.executePartial();
+        // then
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt)).isLessThan(1000);
+        assertThat(results).extracting(TaskResult::status).containsOnly(TaskStatus.FAILED);
+        assertThat(results).extracting(TaskResult::error).allSatisfy(e -> assertThat(e).isInstanceOf(AssertionError.class));
+    }
+
+    @Test
+    @DisplayName("Keeps queued tasks off the heap")
+    void keepsTasksOffHeap() throws InterruptedException, ExecutionException {
+        // given
+        var underTest = WorkQueue.<String, Integer>builder((s, wq) -> s.length())
+                .maxWorkers(4)
+                .offHeap(TaskCodec.utf8())
+                .segmentSize(4096)
+                .build();
+        List<String> tasks = IntStream.range(0, 10_000).mapToObj("x"::repeat).toList();
+        underTest.addAll(tasks.subList(0, 5_000));
+        CompletableFuture<Integer> future = underTest.submit("future");
+        tasks.subList(5_000, 10_000).forEach(underTest::add);
+        // when
+        List<Integer> results = underTest.execute();
+        // then
+        assertThat(results).hasSize(10_001);
+        assertThat(results.subList(0, 5_000)).isEqualTo(IntStream.range(0, 5_000).boxed().toList());
+        assertThat(results.get(5_000)).isEqualTo(6);
+        assertThat(results.get(10_000)).isEqualTo(9_999);
+        assertThat(future.get()).isEqualTo(6);
+    }
+
+    @Test
+    @DisplayName("Fails a task the codec chokes on instead of keeping the round pending")
+    void failsTasksThatCanNotBeEncoded() throws InterruptedException {
+        // given
+        TaskCodec<String> utf8 = TaskCodec.utf8();
+        var underTest = WorkQueue.<String, Integer>builder((s, wq) -> s.length())
+                .maxQueueSize(10)
+                .executionTimeout(5_000)
+                .offHeap(new TaskCodec<>() {
+                    @Override
+                    public int encodedSize(String task) {
+                        // Too small for "boom", encoding it overflows
+                        return task.equals("boom") ? 1 : utf8.encodedSize(task);
+                    }
+
+                    @Override
+                    public void encode(String task, ByteBuffer target) {
+                        utf8.encode(task, target);
+                    }
+
+                    @Override
+                    public String decode(ByteBuffer source) {
+                        return utf8.decode(source);
+                    }
+                })
+                .build();
+        underTest.add("a");
+        assertThatThrownBy(() -> underTest.add("boom")).isInstanceOf(BufferOverflowException.class);
+        assertThatThrownBy(() -> underTest.addAll(List.of("bb", "boom", "ccc")))
+                .isInstanceOf(BufferOverflowException.class);
+        // when
+        List<TaskResult<Integer>> outcomes = underTest.executePartial();
+        underTest.addAll(List.of("dddd", "eeeee"));
+        List<Integer> next = underTest.execute();
+        // then
+        assertThat(outcomes).extracting(TaskResult::status).containsExactly(
+                TaskStatus.COMPLETED, TaskStatus.FAILED, TaskStatus.COMPLETED, TaskStatus.FAILED, TaskStatus.FAILED);
+        assertThat(next).containsExactly(4, 5);
+    }
+
+    @Test
+    @DisplayName("Spills the backlog to disk and pages it back in order")
+    void spillsToDisk(@TempDir Path directory) throws Exception {
+        // given
+        var underTest = WorkQueue.<Long, Long>builder((l, wq) -> l * 2)
+                .maxWorkers(2)
+                .spillToDisk(TaskCodec.longs(), directory, 100)
+                .segmentSize(4096)
+                .build();
+        underTest.addAll(LongStream.range(0, 3_000).boxed().toList());
+        LongStream.range(3_000, 5_000).forEach(underTest::add);
+        try (Stream<Path> files = Files.list(directory)) {
+            assertThat(files.count()).isGreaterThan(1);
+        }
+        // when
+        List<Long> results = underTest.execute();
+        underTest.close();
+        // then
+        assertThat(results).isEqualTo(LongStream.range(0, 5_000).map(l -> l * 2).boxed().toList());
+        try (Stream<Path> files = Files.list(directory)) {
+            assertThat(files).isEmpty();
+        }
+    }
+
+    @Test
+    @DisplayName("Resumes only the unfinished tasks of a journaled round")
+    void resumesFromJournal(@TempDir Path directory) throws Exception {
+        // given
+        Path journal = directory.resolve("round.journal");
+        CountDownLatch stuck = new CountDownLatch(1);
+        var crashed = WorkQueue.<Long, Long>builder((l, wq) -> {
+                    if (l == 6) {
+                        stuck.countDown();
+                        sleep(10_000);
+                    }
+                    return l * 2;
+                })
+                .maxWorkers(1)
+                .journal(journal, TaskCodec.longs(), TaskCodec.longs())
+                .build();
+        crashed.addAll(LongStream.range(1, 11).boxed().toList());
+        crashed.executeAsync();
+        assertThat(stuck.await(5, TimeUnit.SECONDS)).isTrue();
+        crashed.close();
+        List<Long> ran = Collections.synchronizedList(new ArrayList<>());
+        var underTest = WorkQueue.<Long, Long>builder((l, wq) -> {
+                    ran.add(l);
+                    return l * 2;
+                })
+                .maxWorkers(1)
+                .journal(journal, TaskCodec.longs(), TaskCodec.longs())
+                .build();
+        // when
+        List<Long> results = underTest.execute();
+        underTest.close();
+        // then
+        assertThat(results).isEqualTo(LongStream.range(1, 11).map(l -> l * 2).boxed().toList());
+        assertThat(ran).containsExactly(6L, 7L, 8L, 9L, 10L);
+        assertThat(Files.size(journal)).isZero();
+    }
+
+    @Test
+    @DisplayName("Writes outcomes out while the round is still running")
+    void writesOutcomesOutBehind(@TempDir Path directory) throws Exception {
+        // given
+        Path journal = directory.resolve("round.journal");
+        CountDownLatch stuck = new CountDownLatch(1);
+        var crashed = WorkQueue.<Long, Long>builder((l, wq) -> {
+                    if (l == 6) {
+                        stuck.countDown();
+                        sleep(10_000);
+                    }
+                    return l * 2;
+                })
+                .maxWorkers(1)
+                .journal(journal, TaskCodec.longs(), TaskCodec.longs())
+                .build();
+        crashed.addAll(LongStream.range(1, 11).boxed().toList());
+        crashed.executeAsync();
+        assertThat(stuck.await(5, TimeUnit.SECONDS)).isTrue();
+        // Ten submissions and five outcomes, 22 bytes a record
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (Files.size(journal) < 15 * 22 && System.nanoTime() < deadline) {
+            sleep(1);
+        }
+        List<Long> ran = Collections.synchronizedList(new ArrayList<>());
+        // when
+        var underTest = WorkQueue.<Long, Long>builder((l, wq) -> {
+                    ran.add(l);
+                    return l * 2;
+                })
+                .maxWorkers(1)
+                .journal(journal, TaskCodec.longs(), TaskCodec.longs())
+                .build();
+        List<Long> results = underTest.execute();
+        underTest.close();
+        crashed.close();
+        // then
+        assertThat(results).isEqualTo(LongStream.range(1, 11).map(l -> l * 2).boxed().toList());
+        assertThat(ran).containsExactly(6L, 7L, 8L, 9L, 10L);
+    }
+
+    @Test
+    @DisplayName("Hands tasks out through a ring buffer, overflowing it in order")
+    void handsOutThroughRingBuffer() throws InterruptedException {
+        // given
+        var underTest = WorkQueue.<Integer, Integer>builder((i, wq) -> i * 2)
+                .maxWorkers(4)
+                .ringBuffer(64)
+                .waitStrategy(WaitStrategy.YIELDING)
+                .build();
+        underTest.addAll(IntStream.range(0, 1_000).boxed().toList());
+        IntStream.range(1_000, 1_500).forEach(underTest::add);
+        // when
+        List<Integer> results = underTest.execute();
+        underTest.close();
+        // then
+        assertThat(results).isEqualTo(IntStream.range(0, 1_500).map(i -> i * 2).boxed().toList());
+    }
+
+    @Test
+    @DisplayName("Idle workers spin before they park")
+    void spinsBeforeParking() throws Exception {
+        // given
+        AtomicReference<Thread> worker = new AtomicReference<>();
+        var underTest = WorkQueue.<Integer, Integer>builder((i, wq) -> {
+                    worker.set(Thread.currentThread());
+                    return i * 2;
+                })
+                .minWorkers(1)
+                .maxWorkers(1)
+                .persistent(true)
+                .waitStrategy(WaitStrategy.spinThenPark(20_000_000))
+                .build();
+        // when
+        Integer result = underTest.submit(21).get(5, TimeUnit.SECONDS);
+        sleep(1);
+        Thread.State spinning = worker.get().getState();
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (worker.get().getState() == Thread.State.RUNNABLE && System.currentTimeMillis() < deadline) {
+            sleep(10);
+        }
+        Thread.State parked = worker.get().getState();
+        underTest.close();
+        // then
+        assertThat(result).isEqualTo(42);
+        assertThat(spinning).isEqualTo(Thread.State.RUNNABLE);
+        assertThat(parked).isIn(Thread.State.WAITING, Thread.State.TIMED_WAITING);
+        assertThatThrownBy(() -> WaitStrategy.spinThenPark(-1)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> WorkQueue.<Integer, Integer>builder((i, wq) -> i)
+                .executionMode(ExecutionMode.WORK_STEALING)
+                .waitStrategy(WaitStrategy.YIELDING)
+                .build()).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    @DisplayName("Loses no task added from many producers while rounds finish")
+    void shardsSubmissions() throws Exception {
+        // given
+        var underTest = WorkQueue.<Integer, Integer>builder((i, wq) -> i)
+                .maxWorkers(4)
+                .persistent(true)
+                .sharded(4)
+                .build();
+        int producers = 8;
+        int perProducer = 20_000;
+        CountDownLatch added = new CountDownLatch(producers);
+        for (int p = 0; p < producers; ++p) {
+            int first = p * perProducer;
+            Thread.ofPlatform().start(() -> {
+                for (int i = first; i < first + perProducer; i += 100) {
+                    underTest.add(i);
+                    underTest.addAll(IntStream.range(i + 1, i + 100).boxed().toList());
+                }
+                added.countDown();
+            });
+        }
+        // when
+        List<Integer> results = new ArrayList<>();
+        while (!added.await(1, TimeUnit.MILLISECONDS)) {
+            results.addAll(underTest.execute());
+        }
+        results.addAll(underTest.execute());
+        underTest.close();
+        // then
+        assertThat(results).hasSize(producers * perProducer);
+        assertThat(new HashSet<>(results)).hasSize(producers * perProducer);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static class ConcurrencyProbe {
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicInteger peak = new AtomicInteger();
+
+        void run(long millis) {
+            peak.accumulateAndGet(active.incrementAndGet(), Math::max);
+            try {
+                sleep(millis);
+            } finally {
+                active.decrementAndGet();
+            }
+        }
+
+        int peak() {
+            return peak.get();
+        }
+    }
 }